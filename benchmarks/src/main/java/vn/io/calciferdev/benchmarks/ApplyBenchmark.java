@@ -0,0 +1,79 @@
+package vn.io.calciferdev.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vn.io.calciferdev.ApplyCommand;
+
+/**
+ * One {@code apply} per operation of three replace steps that rename {@code alpha} to {@code beta},
+ * {@code beta} to {@code gamma} and {@code gamma} back to {@code alpha}, either fused into one traversal
+ * or run one after another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ApplyBenchmark {
+
+    @Param({"MANY_SMALL", "FEW_HUGE"})
+    public SyntheticTree.Shape shape;
+
+    @Param({"SPARSE", "DENSE"})
+    public SyntheticTree.Density density;
+
+    @Param({"true", "false"})
+    public boolean fuse;
+
+    private Path dir;
+    private Path config;
+    private SyntheticTree tree;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        dir = Files.createTempDirectory("calcifer-apply");
+        tree = SyntheticTree.create(dir.resolve("tree"), shape, density);
+        config = Files.writeString(dir.resolve("apply.yaml"), """
+                commands:
+                  - {type: replace, oldPattern: "alpha", newPattern: "beta", literal: true, gitignore: false, inputPaths: ["%1$s"]}
+                  - {type: replace, oldPattern: "beta", newPattern: "gamma", literal: true, gitignore: false, inputPaths: ["%1$s"]}
+                  - {type: replace, oldPattern: "gamma", newPattern: "alpha", literal: true, gitignore: false, inputPaths: ["%1$s"]}
+                """.formatted(tree.root()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        SyntheticTree.delete(dir);
+    }
+
+    @Benchmark
+    public int apply(Throughput throughput) {
+        ApplyCommand command = new ApplyCommand();
+        command.setConfigFile(config.toFile());
+        command.setNoFuse(!fuse);
+        int exitCode = command.call();
+        if (exitCode != 0) {
+            throw new IllegalStateException("apply failed with exit code " + exitCode);
+        }
+        throughput.add(tree);
+        return exitCode;
+    }
+}
@@ -0,0 +1,93 @@
+package vn.io.calciferdev.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vn.io.calciferdev.CopyCommand;
+
+/**
+ * One {@code copy} of a synthetic tree per operation: a full copy into an empty destination with the
+ * in-process engine or {@code cp -r}, or a {@code --sync} against an up-to-date destination, which
+ * measures the cost of comparing without copying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    public enum Strategy {
+        ENGINE, NATIVE, SYNC
+    }
+
+    @Param({"MANY_SMALL", "FEW_HUGE", "DEEP"})
+    public SyntheticTree.Shape shape;
+
+    @Param({"ENGINE", "NATIVE", "SYNC"})
+    public Strategy strategy;
+
+    private Path dir;
+    private Path destination;
+    private SyntheticTree tree;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        dir = Files.createTempDirectory("calcifer-copy");
+        tree = SyntheticTree.create(dir.resolve("tree"), shape, SyntheticTree.Density.NONE);
+        destination = dir.resolve("destination");
+        if (strategy == Strategy.SYNC) {
+            copy();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void clearDestination() {
+        if (strategy != Strategy.SYNC) {
+            SyntheticTree.delete(destination);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        SyntheticTree.delete(dir);
+    }
+
+    @Benchmark
+    public int copy(Throughput throughput) {
+        int exitCode = copy();
+        throughput.add(tree);
+        return exitCode;
+    }
+
+    private int copy() {
+        CopyCommand command = new CopyCommand();
+        command.setDestination(destination.toString());
+        command.setInputPaths(List.of(tree.root().toString()));
+        command.setNativeCopy(strategy == Strategy.NATIVE);
+        command.setSync(strategy == Strategy.SYNC);
+        int exitCode = command.call();
+        if (exitCode != 0) {
+            throw new IllegalStateException("copy failed with exit code " + exitCode);
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,94 @@
+package vn.io.calciferdev.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vn.io.calciferdev.ReplaceCommand;
+
+/**
+ * One {@code replace} over a synthetic tree per operation. Invocations alternate between replacing
+ * {@code alpha} with {@code omega} and back, so every invocation finds the same number of matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReplaceBenchmark {
+
+    public enum Rules {
+        REGEX, LITERAL, MAPPING
+    }
+
+    @Param({"MANY_SMALL", "FEW_HUGE", "DEEP"})
+    public SyntheticTree.Shape shape;
+
+    @Param({"NONE", "SPARSE", "DENSE"})
+    public SyntheticTree.Density density;
+
+    @Param({"REGEX", "LITERAL", "MAPPING"})
+    public Rules rules;
+
+    private Path dir;
+    private SyntheticTree tree;
+    private boolean forward = true;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        dir = Files.createTempDirectory("calcifer-replace");
+        tree = SyntheticTree.create(dir.resolve("tree"), shape, density);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        SyntheticTree.delete(dir);
+    }
+
+    @Benchmark
+    public int replace(Throughput throughput) {
+        String from = forward ? SyntheticTree.MATCH : SyntheticTree.OTHER;
+        String to = forward ? SyntheticTree.OTHER : SyntheticTree.MATCH;
+        forward = !forward;
+
+        ReplaceCommand command = new ReplaceCommand();
+        command.setInputPaths(List.of(tree.root().toString()));
+        command.setGitignore(false);
+        switch (rules) {
+            case REGEX -> {
+                command.setOldPattern("\\b" + from + "\\b");
+                command.setNewPattern(to);
+            }
+            case LITERAL -> {
+                command.setOldPattern(from);
+                command.setNewPattern(to);
+                command.setLiteral(true);
+            }
+            case MAPPING -> command.setMappings(Map.of(from, to, "zzz-" + from, "zzz-" + to));
+        }
+        int exitCode = command.call();
+        if (exitCode != 0) {
+            throw new IllegalStateException("replace failed with exit code " + exitCode);
+        }
+        throughput.add(tree);
+        return exitCode;
+    }
+}
@@ -0,0 +1,93 @@
+package vn.io.calciferdev.benchmarks;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vn.io.calciferdev.OutputCapture;
+import vn.io.calciferdev.RunCommand;
+
+/**
+ * Process spawn overhead of {@code run}: a no-op command in every folder per operation, compared with
+ * starting the same processes directly through {@link ProcessBuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RunBenchmark {
+
+    @Param({"16"})
+    public int folders;
+
+    @Param({"1", "4"})
+    public int parallel;
+
+    @Param({"DISCARD", "BUFFER"})
+    public OutputCapture.Mode output;
+
+    private Path dir;
+    private List<String> paths;
+
+    @Setup(Level.Trial)
+    public void createFolders() throws IOException {
+        dir = Files.createTempDirectory("calcifer-run");
+        paths = new ArrayList<>();
+        for (int i = 0; i < folders; i++) {
+            paths.add(Files.createDirectory(dir.resolve("folder" + i)).toString());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFolders() {
+        SyntheticTree.delete(dir);
+    }
+
+    @Benchmark
+    public int run() {
+        RunCommand command = new RunCommand();
+        command.setCommand("true");
+        command.setInputPaths(paths);
+        command.setParallel(parallel);
+        command.setOutputMode(output);
+        int exitCode = command.call();
+        if (exitCode != 0) {
+            throw new IllegalStateException("run failed with exit code " + exitCode);
+        }
+        return exitCode;
+    }
+
+    @Benchmark
+    public int processBuilderBaseline() throws IOException, InterruptedException {
+        int exitCodes = 0;
+        for (String path : paths) {
+            Process process = new ProcessBuilder("sh", "-c", "true")
+                    .directory(Path.of(path).toFile())
+                    .redirectOutput(Redirect.DISCARD)
+                    .redirectErrorStream(true)
+                    .start();
+            exitCodes += process.waitFor();
+        }
+        return exitCodes;
+    }
+}
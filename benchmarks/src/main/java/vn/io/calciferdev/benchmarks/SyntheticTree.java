@@ -0,0 +1,140 @@
+package vn.io.calciferdev.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Generates reproducible directory trees of text files for the benchmarks. Files are lines of words
+ * from a small vocabulary, with the word {@link #MATCH} mixed in at the chosen density.
+ */
+public class SyntheticTree {
+
+    public static final String MATCH = "alpha";
+    public static final String OTHER = "omega";
+
+    private static final String[] WORDS = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+        "eiusmod", "tempor", "incididunt", "labore", "dolore", "magna", "aliqua", "enim", "minim", "veniam"
+    };
+
+    public enum Shape {
+        /** 100 directories of 50 files of 4 KiB. */
+        MANY_SMALL(100, 50, 4 * 1024, 1),
+        /** 4 files of 32 MiB in one directory. */
+        FEW_HUGE(1, 4, 32 * 1024 * 1024, 1),
+        /** A chain of 64 nested directories holding 8 files of 4 KiB each. */
+        DEEP(1, 8, 4 * 1024, 64);
+
+        final int directories;
+        final int filesPerDirectory;
+        final int fileSize;
+        final int depth;
+
+        Shape(int directories, int filesPerDirectory, int fileSize, int depth) {
+            this.directories = directories;
+            this.filesPerDirectory = filesPerDirectory;
+            this.fileSize = fileSize;
+            this.depth = depth;
+        }
+    }
+
+    public enum Density {
+        /** No line contains a match. */
+        NONE(0),
+        /** About one line in 500 contains a match. */
+        SPARSE(500),
+        /** Every line contains a match. */
+        DENSE(1);
+
+        final int linesPerMatch;
+
+        Density(int linesPerMatch) {
+            this.linesPerMatch = linesPerMatch;
+        }
+    }
+
+    private final Path root;
+    private long files;
+    private long bytes;
+
+    private SyntheticTree(Path root) {
+        this.root = root;
+    }
+
+    public static SyntheticTree create(Path root, Shape shape, Density density) throws IOException {
+        SyntheticTree tree = new SyntheticTree(root);
+        Random random = new Random(42);
+        for (int d = 0; d < shape.directories; d++) {
+            Path dir = root.resolve("dir" + d);
+            for (int level = 0; level < shape.depth; level++) {
+                Files.createDirectories(dir);
+                for (int f = 0; f < shape.filesPerDirectory; f++) {
+                    byte[] content = content(random, shape.fileSize, density);
+                    Files.write(dir.resolve("file" + f + ".txt"), content);
+                    tree.files++;
+                    tree.bytes += content.length;
+                }
+                dir = dir.resolve("level" + (level + 1));
+            }
+        }
+        return tree;
+    }
+
+    private static byte[] content(Random random, int size, Density density) {
+        StringBuilder text = new StringBuilder(size + 128);
+        int line = 0;
+        while (text.length() < size) {
+            for (int w = 0; w < 10; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            if (density.linesPerMatch > 0 && line % density.linesPerMatch == 0) {
+                text.append(MATCH).append(' ');
+            }
+            text.append('\n');
+            line++;
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public long files() {
+        return files;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public static void delete(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Training run for the class data sharing archive built by the {@code appcds} profile. It exercises
+ * each subcommand on a small scratch tree so the classes they load end up in the archive.
+ */
+public class CdsTraining {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("calcifer-cds");
+        try {
+            Path source = Files.createDirectories(dir.resolve("source/oldName"));
+            Files.writeString(source.resolve("file.txt"), "old text, other text\n");
+            Files.writeString(dir.resolve("mapping.yaml"), "other: another\n");
+            Files.writeString(dir.resolve("apply.yaml"), """
+                    commands:
+                      - type: run
+                        command: "echo apply"
+                        inputPaths: ["%1$s"]
+                      - type: replace
+                        oldPattern: "text"
+                        newPattern: "words"
+                        literal: true
+                        inputPaths: ["%1$s"]
+                      - type: copy
+                        destination: "%2$s"
+                        sync: true
+                        inputPaths: ["%1$s"]
+                    """.formatted(dir.resolve("source"), dir.resolve("applied")));
+
+            String folder = dir.resolve("source").toString();
+            execute("--version");
+            execute("run", "echo training", "-i", folder, "-p", "2", "-v");
+            execute("replace", "old (\\w+)", "new $1", "-i", folder, "-n", "--index", dir.resolve("index").toString());
+            execute("replace", "-m", "new=newer", "--mapping-file", dir.resolve("mapping.yaml").toString(), "-i", folder);
+            execute("copy", dir.resolve("copied").toString(), "-i", folder);
+            execute("apply", dir.resolve("apply.yaml").toString());
+            // The client is started as its own JVM; loading it is enough to archive its classes.
+            Class.forName(CalciferClient.class.getName());
+            Class.forName(DaemonProtocol.FrameOutputStream.class.getName());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            CopyEngine.deleteTree(dir);
+        }
+    }
+
+    private static void execute(String... args) {
+        Calcifer.commandLine().execute(args);
+    }
+}
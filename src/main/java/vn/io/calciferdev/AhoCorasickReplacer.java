@@ -0,0 +1,186 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a whole table of literal replacements in a single pass. Matching is leftmost-longest, so
+ * with both {@code com.example} and {@code com.example.api} in the table the longer key wins where
+ * both match at the same position.
+ */
+public class AhoCorasickReplacer implements ContentReplacer {
+
+    private final byte[][] replacements;
+    private final boolean[] identity;
+    private final int[] byteClass = new int[256];
+    private final int alphabet;
+    private final int[] transitions;
+    private final int[] depth;
+    private final int[] outLength;
+    private final int[] outPattern;
+    private final int maxKeyLength;
+    private final String fingerprint;
+
+    public AhoCorasickReplacer(Map<String, String> mappings) {
+        if (mappings.isEmpty()) {
+            throw new IllegalArgumentException("At least one mapping is required");
+        }
+        StringBuilder description = new StringBuilder("mapping");
+        mappings.forEach((key, value) -> description.append('\0').append(key).append('\0').append(value));
+        fingerprint = description.toString();
+        List<byte[]> keys = new ArrayList<>();
+        replacements = new byte[mappings.size()][];
+        identity = new boolean[mappings.size()];
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            if (mapping.getKey().isEmpty()) {
+                throw new IllegalArgumentException("Mapping keys must not be empty");
+            }
+            byte[] key = mapping.getKey().getBytes(StandardCharsets.UTF_8);
+            replacements[keys.size()] = mapping.getValue().getBytes(StandardCharsets.UTF_8);
+            identity[keys.size()] = Arrays.equals(key, replacements[keys.size()]);
+            keys.add(key);
+        }
+
+        int classes = 1;
+        int longest = 0;
+        for (byte[] key : keys) {
+            longest = Math.max(longest, key.length);
+            for (byte b : key) {
+                if (byteClass[b & 0xff] == 0) {
+                    byteClass[b & 0xff] = classes++;
+                }
+            }
+        }
+        alphabet = classes;
+        maxKeyLength = longest;
+
+        List<int[]> children = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Integer> terminal = new ArrayList<>();
+        children.add(newRow());
+        depths.add(0);
+        terminal.add(-1);
+        for (int p = 0; p < keys.size(); p++) {
+            int state = 0;
+            for (byte b : keys.get(p)) {
+                int c = byteClass[b & 0xff];
+                if (children.get(state)[c] == 0) {
+                    children.get(state)[c] = children.size();
+                    children.add(newRow());
+                    depths.add(depths.get(state) + 1);
+                    terminal.add(-1);
+                }
+                state = children.get(state)[c];
+            }
+            if (terminal.get(state) == -1) {
+                terminal.set(state, p);
+            }
+        }
+
+        int states = children.size();
+        transitions = new int[states * alphabet];
+        depth = new int[states];
+        outLength = new int[states];
+        outPattern = new int[states];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            depth[state] = depths.get(state);
+            if (terminal.get(state) != -1) {
+                outPattern[state] = terminal.get(state);
+                outLength[state] = depth[state];
+            } else {
+                outPattern[state] = outPattern[fail[state]];
+                outLength[state] = outLength[fail[state]];
+            }
+            for (int c = 0; c < alphabet; c++) {
+                int child = children.get(state)[c];
+                int fallback = state == 0 ? 0 : transitions[fail[state] * alphabet + c];
+                if (child != 0) {
+                    fail[child] = fallback;
+                    transitions[state * alphabet + c] = child;
+                    queue.add(child);
+                } else {
+                    transitions[state * alphabet + c] = fallback;
+                }
+            }
+        }
+    }
+
+    private int[] newRow() {
+        return new int[alphabet];
+    }
+
+    @Override
+    public int overlap() {
+        return maxKeyLength - 1;
+    }
+
+    @Override
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public boolean find(ByteBuffer window, boolean last) {
+        int state = 0;
+        for (int i = window.position(); i < window.limit(); i++) {
+            state = transitions[state * alphabet + byteClass[window.get(i) & 0xff]];
+            if (outLength[state] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int replace(ByteBuffer window, int commitLimit, boolean last, Output out) throws IOException {
+        int limit = window.limit();
+        int copied = window.position();
+        int state = 0;
+        int candidateStart = -1;
+        int candidateEnd = -1;
+        int candidatePattern = -1;
+        int i = copied;
+        while (true) {
+            if (i < limit) {
+                state = transitions[state * alphabet + byteClass[window.get(i) & 0xff]];
+                if (outLength[state] > 0) {
+                    int start = i - outLength[state] + 1;
+                    if (start < commitLimit && (candidateStart == -1 || start <= candidateStart)) {
+                        candidateStart = start;
+                        candidateEnd = i + 1;
+                        candidatePattern = outPattern[state];
+                    }
+                }
+                if (candidateStart == -1 || i - depth[state] + 1 <= candidateStart) {
+                    i++;
+                    continue;
+                }
+            } else if (candidateStart == -1) {
+                break;
+            }
+            // No partial match that starts at or before the candidate is still alive, so it is final.
+            if (!identity[candidatePattern]) {
+                out.write(window, copied, candidateStart);
+                out.write(replacements[candidatePattern]);
+                out.markChanged();
+                copied = candidateEnd;
+            }
+            i = candidateEnd;
+            state = 0;
+            candidateStart = -1;
+        }
+        int consumed = last ? limit : Math.max(commitLimit, copied);
+        out.write(window, copied, consumed);
+        return consumed;
+    }
+}
@@ -3,8 +3,20 @@ package vn.io.calciferdev;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.yaml.snakeyaml.Yaml;
 
@@ -26,15 +38,75 @@ public class ApplyCommand implements Callable<Integer> {
     @Option(names = {"-v", "--verbose"}, description = "Enable verbose output")
     private boolean verbose;
 
+    @Option(names = {"-t", "--timeout"}, description = "Default per-folder timeout in seconds for run steps without their own timeout")
+    private long timeout;
+
+    @Option(names = {"--max-parallel"}, description = "Maximum number of steps running at the same time (default: number of processors)")
+    private int maxParallel;
+
+    @Option(names = {"--no-fuse"}, description = "Run consecutive replace steps separately instead of in one traversal")
+    private boolean noFuse;
+
+    @Option(names = {"--dry-run"}, description = "Preview the replace steps as a diff without writing anything; run and copy steps are only listed")
+    private boolean dryRun;
+
+    @Option(names = {"--diff-lines"}, defaultValue = "20",
+            description = "Changed lines shown per file in a dry run, 0 to only count them (default: 20)")
+    private int diffLines = 20;
+
+    @Option(names = {"--watch"}, description = "After the first run, keep watching the input folders and re-apply the affected steps to changed files")
+    private boolean watch;
+
+    @Option(names = {"--debounce"}, defaultValue = "200",
+            description = "Milliseconds without further changes before a batch of changes is applied in watch mode (default: 200)")
+    private long debounce = 200;
+
+    @Option(names = {"--adaptive"}, description = "Adjust the concurrency of each step's files and commands to their latency, with limits shared by all steps")
+    private boolean adaptive;
+
+    @Option(names = {"--max-open-files"}, defaultValue = "512",
+            description = "With --adaptive, files open at the same time over all steps (default: 512)")
+    private int maxOpenFiles = ConcurrencyController.DEFAULT_MAX_OPEN_FILES;
+
+    @Option(names = {"--max-processes"}, description = "With --adaptive, child processes running at the same time over all steps (default: twice the number of processors)")
+    private int maxProcesses;
+
+    @Option(names = {"--stats"}, description = "Log a table of time per phase, folder latencies, bytes and skipped files over all steps")
+    private boolean stats;
+
+    @Option(names = {"--stats-file"}, description = "Write the statistics as JSON to this file")
+    private Path statsFile;
+
+    private final Metrics metrics = new Metrics();
+
+    private DryRunReport dryRunReport;
+
+    /**
+     * Listings and attributes read by the steps of one run, so each tree is walked on disk once. Run
+     * steps may change anything and drop it all.
+     */
+    private TreeSnapshot snapshot;
+
+    private ConcurrencyController concurrency;
+
+    /**
+     * Content stores of the copy steps with {@code dedup}, by store file; the in-memory one is keyed by
+     * the empty string. Steps sharing a store link to each other's copies.
+     */
+    private final Map<String, ContentStore> contentStores = new HashMap<>();
+
     @Data
     @NoArgsConstructor
     public static class Config {
+        private Integer maxParallel;
         private List<CommandConfig> commands;
     }
 
     @Data
     @NoArgsConstructor
     public static class CommandConfig {
+        private String id;
+        private List<String> dependsOn;
         private String type;
         private String command;
         private String destination;
@@ -43,35 +115,174 @@ public class ApplyCommand implements Callable<Integer> {
         private boolean replaceFolderNames;
         private String ignorePattern;
         private List<String> inputPaths;
+        private Integer parallel;
+        private boolean failFast;
+        private String output;
+        private String logDir;
+        private Integer bufferSize;
+        private Long timeout;
+        private String cache;
+        private List<String> cacheEnv;
+        private Integer threads;
+        private boolean literal;
+        private Map<String, String> replacements;
+        private String mappingFile;
+        private List<String> excludes;
+        private Boolean gitignore;
+        private String indexFile;
+        private String journalFile;
+        private boolean nativeCopy;
+        private boolean sync;
+        private boolean checksum;
+        private boolean delete;
+        private boolean dedup;
+        private String dedupStore;
     }
 
     private int executeRunCommand(CommandConfig cmdConfig) {
+        if (dryRun) {
+            log.info("Dry run: would run '{}' in {}", cmdConfig.getCommand(), cmdConfig.getInputPaths());
+            return 0;
+        }
+        // The command may change any file, also under steps that walk at the same time.
+        TreeSnapshot current = snapshot;
+        if (current == null) {
+            return createRunCommand(cmdConfig).call();
+        }
+        current.suspend();
+        try {
+            return createRunCommand(cmdConfig).call();
+        } finally {
+            current.resume();
+        }
+    }
+
+    RunCommand createRunCommand(CommandConfig cmdConfig) {
         RunCommand runCmd = new RunCommand();
         runCmd.setCommand(cmdConfig.getCommand());
         runCmd.setInputPaths(cmdConfig.getInputPaths());
         runCmd.setVerbose(verbose);
-        return runCmd.call();
+        if (cmdConfig.getParallel() != null) {
+            runCmd.setParallel(cmdConfig.getParallel());
+        }
+        runCmd.setFailFast(cmdConfig.isFailFast());
+        if (cmdConfig.getOutput() != null) {
+            runCmd.setOutputMode(OutputCapture.parseMode(cmdConfig.getOutput()));
+        }
+        if (cmdConfig.getLogDir() != null) {
+            runCmd.setLogDir(Path.of(cmdConfig.getLogDir()));
+        }
+        if (cmdConfig.getBufferSize() != null) {
+            runCmd.setBufferSize(cmdConfig.getBufferSize());
+        }
+        runCmd.setTimeout(cmdConfig.getTimeout() != null ? cmdConfig.getTimeout() : timeout);
+        if (cmdConfig.getCache() != null) {
+            runCmd.setCacheDir(Path.of(cmdConfig.getCache()));
+        }
+        runCmd.setCacheEnv(cmdConfig.getCacheEnv());
+        runCmd.setMetrics(metrics);
+        runCmd.setConcurrency(concurrency);
+        return runCmd;
     }
 
     private int executeReplaceCommand(CommandConfig cmdConfig) {
+        return createReplaceCommand(cmdConfig).call();
+    }
+
+    private int executeFusedReplaceCommand(List<CommandConfig> cmdConfigs) {
+        return createFusedReplaceCommand(cmdConfigs).call();
+    }
+
+    ReplaceCommand createFusedReplaceCommand(List<CommandConfig> cmdConfigs) {
+        ReplaceCommand replaceCmd = createReplaceCommand(cmdConfigs.get(0));
+        replaceCmd.setFusedSteps(cmdConfigs.subList(1, cmdConfigs.size()).stream().map(this::createReplaceCommand).toList());
+        return replaceCmd;
+    }
+
+    private ReplaceCommand createReplaceCommand(CommandConfig cmdConfig) {
         ReplaceCommand replaceCmd = new ReplaceCommand();
         replaceCmd.setOldPattern(cmdConfig.getOldPattern());
         replaceCmd.setNewPattern(cmdConfig.getNewPattern());
         replaceCmd.setReplaceFolderNames(cmdConfig.isReplaceFolderNames());
         replaceCmd.setIgnorePattern(cmdConfig.getIgnorePattern());
+        replaceCmd.setLiteral(cmdConfig.isLiteral());
+        replaceCmd.setMappings(cmdConfig.getReplacements());
+        if (cmdConfig.getMappingFile() != null) {
+            replaceCmd.setMappingFile(new File(cmdConfig.getMappingFile()));
+        }
+        replaceCmd.setExcludes(cmdConfig.getExcludes());
+        if (cmdConfig.getGitignore() != null) {
+            replaceCmd.setGitignore(cmdConfig.getGitignore());
+        }
+        if (cmdConfig.getIndexFile() != null) {
+            replaceCmd.setIndexFile(Path.of(cmdConfig.getIndexFile()));
+        }
+        if (cmdConfig.getJournalFile() != null) {
+            replaceCmd.setJournalFile(Path.of(cmdConfig.getJournalFile()));
+        }
         replaceCmd.setInputPaths(cmdConfig.getInputPaths());
         replaceCmd.setVerbose(verbose);
-        return replaceCmd.call();
+        if (cmdConfig.getThreads() != null) {
+            replaceCmd.setThreads(cmdConfig.getThreads());
+        }
+        replaceCmd.setMetrics(metrics);
+        replaceCmd.setDryRun(dryRun);
+        replaceCmd.setDryRunReport(dryRunReport);
+        replaceCmd.setSnapshot(snapshot);
+        replaceCmd.setConcurrency(concurrency);
+        return replaceCmd;
     }
 
     private int executeCopyCommand(CommandConfig cmdConfig) {
+        if (dryRun) {
+            log.info("Dry run: would copy {} to {}", cmdConfig.getInputPaths(), cmdConfig.getDestination());
+            return 0;
+        }
         CopyCommand copyCmd = new CopyCommand();
         copyCmd.setDestination(cmdConfig.getDestination());
         copyCmd.setInputPaths(cmdConfig.getInputPaths());
         copyCmd.setVerbose(verbose);
+        copyCmd.setNativeCopy(cmdConfig.isNativeCopy());
+        copyCmd.setSync(cmdConfig.isSync());
+        copyCmd.setChecksum(cmdConfig.isChecksum());
+        copyCmd.setDelete(cmdConfig.isDelete());
+        if (cmdConfig.getThreads() != null) {
+            copyCmd.setThreads(cmdConfig.getThreads());
+        }
+        copyCmd.setMetrics(metrics);
+        copyCmd.setSnapshot(snapshot);
+        copyCmd.setConcurrency(concurrency);
+        if (cmdConfig.isDedup() || cmdConfig.getDedupStore() != null) {
+            try {
+                copyCmd.setContentStore(contentStore(cmdConfig.getDedupStore()));
+            } catch (IOException e) {
+                log.error("Error opening content store {}: {}", cmdConfig.getDedupStore(), e.getMessage());
+                return 1;
+            }
+        }
         return copyCmd.call();
     }
 
+    synchronized ContentStore contentStore(String file) throws IOException {
+        String key = file != null ? file : "";
+        ContentStore store = contentStores.get(key);
+        if (store == null) {
+            store = file != null ? ContentStore.open(Invocation.resolve(file)) : ContentStore.inMemory();
+            contentStores.put(key, store);
+        }
+        return store;
+    }
+
+    void saveContentStores() {
+        contentStores.forEach((file, store) -> {
+            try {
+                store.save();
+            } catch (IOException e) {
+                log.error("Error saving content store {}: {}", file, e.getMessage());
+            }
+        });
+    }
+
     private int executeCommand(CommandConfig cmdConfig) {
         return switch (cmdConfig.getType().toLowerCase()) {
             case "run" -> executeRunCommand(cmdConfig);
@@ -84,30 +295,250 @@ public class ApplyCommand implements Callable<Integer> {
         };
     }
 
+    private enum Status {
+        SUCCEEDED, FAILED, SKIPPED
+    }
+
+    /**
+     * A step to run, with its position in the configuration file, which outcomes are reported in.
+     */
+    record Step(String id, List<CommandConfig> configs, List<String> dependsOn, int position) {
+    }
+
+    private record Outcome(Status status, int exitCode) {
+    }
+
+    /**
+     * Resolves step ids and dependencies. Steps without an {@code id} are named after their 1-based
+     * position. When no step declares {@code dependsOn} every step depends on the one before it, which
+     * keeps plain configuration files sequential.
+     */
+    private List<Step> buildSteps(List<CommandConfig> commands) {
+        boolean declared = commands.stream().anyMatch(c -> c.getDependsOn() != null);
+        Map<String, Step> steps = new LinkedHashMap<>();
+        String previous = null;
+        for (int i = 0; i < commands.size(); i++) {
+            CommandConfig cmdConfig = commands.get(i);
+            String id = cmdConfig.getId() != null ? cmdConfig.getId() : String.valueOf(i + 1);
+            List<String> dependsOn = declared
+                    ? (cmdConfig.getDependsOn() != null ? cmdConfig.getDependsOn() : List.of())
+                    : (previous != null ? List.of(previous) : List.of());
+            if (steps.putIfAbsent(id, new Step(id, List.of(cmdConfig), dependsOn, i)) != null) {
+                throw new IllegalArgumentException("Duplicate step id: " + id);
+            }
+            previous = id;
+        }
+        for (Step step : steps.values()) {
+            for (String dependency : step.dependsOn()) {
+                if (!steps.containsKey(dependency)) {
+                    throw new IllegalArgumentException("Step " + step.id() + " depends on unknown step " + dependency);
+                }
+            }
+        }
+        return topologicalOrder(noFuse ? steps : fuseReplaceSteps(steps));
+    }
+
+    /**
+     * Merges chains of replace steps into one traversal that writes every file at most once. A step is
+     * merged into the one before it when it only depends on that step, nothing else depends on that
+     * step, both walk the same folders with the same filters and neither uses an index. A step that
+     * renames folders ends the chain, since later steps would see the renamed paths.
+     */
+    private Map<String, Step> fuseReplaceSteps(Map<String, Step> steps) {
+        Map<String, Integer> dependents = new HashMap<>();
+        for (Step step : steps.values()) {
+            step.dependsOn().forEach(dependency -> dependents.merge(dependency, 1, Integer::sum));
+        }
+        Map<String, Step> fused = new LinkedHashMap<>();
+        Step current = null;
+        for (Step step : steps.values()) {
+            if (current != null && step.dependsOn().equals(List.of(current.id()))
+                    && dependents.getOrDefault(current.id(), 0) == 1
+                    && canFuse(current.configs().get(current.configs().size() - 1), step.configs().get(0))) {
+                List<CommandConfig> configs = new ArrayList<>(current.configs());
+                configs.add(step.configs().get(0));
+                fused.remove(current.id());
+                current = new Step(step.id(), configs, current.dependsOn(), current.position());
+            } else {
+                current = step;
+            }
+            fused.put(current.id(), current);
+        }
+        if (verbose) {
+            fused.values().stream().filter(step -> step.configs().size() > 1).forEach(step ->
+                    log.info("Running {} replace steps up to {} in a single traversal", step.configs().size(), step.id()));
+        }
+        return fused;
+    }
+
+    private static boolean canFuse(CommandConfig previous, CommandConfig next) {
+        return isReplace(previous) && isReplace(next)
+                && !previous.isReplaceFolderNames()
+                && previous.getIndexFile() == null && next.getIndexFile() == null
+                && Objects.equals(previous.getJournalFile(), next.getJournalFile())
+                && Objects.equals(previous.getInputPaths(), next.getInputPaths())
+                && Objects.equals(previous.getIgnorePattern(), next.getIgnorePattern())
+                && Objects.equals(previous.getExcludes(), next.getExcludes())
+                && !Boolean.FALSE.equals(previous.getGitignore()) == !Boolean.FALSE.equals(next.getGitignore());
+    }
+
+    private static boolean isReplace(CommandConfig cmdConfig) {
+        return "replace".equalsIgnoreCase(cmdConfig.getType());
+    }
+
+    private static List<Step> topologicalOrder(Map<String, Step> steps) {
+        Map<String, Integer> pending = new HashMap<>();
+        Map<String, List<Step>> dependents = new HashMap<>();
+        Deque<Step> ready = new ArrayDeque<>();
+        for (Step step : steps.values()) {
+            pending.put(step.id(), step.dependsOn().size());
+            for (String dependency : step.dependsOn()) {
+                dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(step);
+            }
+            if (step.dependsOn().isEmpty()) {
+                ready.add(step);
+            }
+        }
+        List<Step> ordered = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            Step step = ready.poll();
+            ordered.add(step);
+            for (Step dependent : dependents.getOrDefault(step.id(), List.of())) {
+                if (pending.merge(dependent.id(), -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (ordered.size() < steps.size()) {
+            List<String> cycle = steps.keySet().stream().filter(id -> pending.get(id) > 0).toList();
+            throw new IllegalArgumentException("Dependency cycle between steps " + cycle);
+        }
+        return ordered;
+    }
+
+    /**
+     * Runs every step as soon as the steps it depends on have succeeded, at most {@code limit} at a time.
+     * A failed step only skips the steps that depend on it, directly or transitively. The steps share
+     * {@code shared}, which should be fresh. The outcomes are returned in the order of the configuration file.
+     */
+    private Map<String, Outcome> runSteps(List<Step> steps, int limit, TreeSnapshot shared) {
+        Map<String, CompletableFuture<Outcome>> futures = new LinkedHashMap<>();
+        snapshot = shared;
+        try (ExecutorService executor = Executors.newFixedThreadPool(limit, Thread.ofVirtual().name("step-", 0).factory())) {
+            for (Step step : steps) {
+                CompletableFuture<?>[] dependencies = step.dependsOn().stream().map(futures::get).toArray(CompletableFuture[]::new);
+                futures.put(step.id(), CompletableFuture.allOf(dependencies).thenApplyAsync(v -> {
+                    for (CompletableFuture<?> dependency : dependencies) {
+                        if (((Outcome) dependency.join()).status() != Status.SUCCEEDED) {
+                            log.warn("Skipping step {} because a step it depends on did not succeed", step.id());
+                            return new Outcome(Status.SKIPPED, 0);
+                        }
+                    }
+                    return executeStep(step);
+                }, executor));
+            }
+            // Dependent stages are submitted as their dependencies finish, so wait before shutting down.
+            Map<String, Outcome> outcomes = new LinkedHashMap<>();
+            steps.stream()
+                    .sorted(Comparator.comparingInt(Step::position))
+                    .forEach(step -> outcomes.put(step.id(), futures.get(step.id()).join()));
+            return outcomes;
+        } finally {
+            snapshot = null;
+        }
+    }
+
+    private Outcome executeStep(Step step) {
+        if (verbose) {
+            log.info("Executing step {} of type: {}", step.id(), step.configs().get(0).getType());
+        }
+        try {
+            int result = step.configs().size() > 1 ? executeFusedReplaceCommand(step.configs()) : executeCommand(step.configs().get(0));
+            if (result != 0) {
+                log.error("Step {} failed with exit code {}", step.id(), result);
+                return new Outcome(Status.FAILED, result);
+            }
+            return new Outcome(Status.SUCCEEDED, 0);
+        } catch (RuntimeException e) {
+            log.error("Step {} failed: {}", step.id(), e.getMessage());
+            return new Outcome(Status.FAILED, 1);
+        }
+    }
+
     @Override
     public Integer call() {
         try {
             Yaml yaml = new Yaml();
-            Config config = yaml.loadAs(new FileInputStream(configFile), Config.class);
+            Config config = yaml.loadAs(new FileInputStream(Invocation.resolve(configFile)), Config.class);
 
             if (config.getCommands() == null || config.getCommands().isEmpty()) {
                 log.error("No commands found in configuration file");
                 return 1;
             }
 
-            for (CommandConfig cmdConfig : config.getCommands()) {
-                if (verbose) {
-                    log.info("Executing command of type: {}", cmdConfig.getType());
-                }
-                int result = executeCommand(cmdConfig);
-                if (result != 0) {
-                    return result;
-                }
+            List<Step> steps = buildSteps(config.getCommands());
+            int limit = maxParallel > 0 ? maxParallel
+                    : config.getMaxParallel() != null ? config.getMaxParallel()
+                    : Runtime.getRuntime().availableProcessors();
+            if (watch && dryRun) {
+                throw new IllegalArgumentException("--watch cannot be used with --dry-run");
             }
-            return 0;
+            if (adaptive) {
+                concurrency = new ConcurrencyController(maxOpenFiles,
+                        maxProcesses > 0 ? maxProcesses : 2 * Runtime.getRuntime().availableProcessors());
+            }
+            // Every step of a dry run sees the unchanged tree, not the result of the steps before it.
+            dryRunReport = dryRun ? new DryRunReport(diffLines) : null;
+            TreeSnapshot initial = new TreeSnapshot();
+            Map<String, Outcome> outcomes = runSteps(steps, Math.max(1, limit), initial);
+            saveContentStores();
+            metrics.report("apply", stats, statsFile);
+            if (dryRunReport != null) {
+                dryRunReport.logSummary();
+            }
+            if (concurrency != null) {
+                concurrency.logSummary();
+            }
+            int exitCode = logFinalResult(outcomes);
+            if (watch) {
+                // The watcher registers its folders from the listings of the first run instead of walking again.
+                return new ApplyWatcher(this, steps, debounce,
+                        () -> logFinalResult(runSteps(steps, Math.max(1, limit), new TreeSnapshot()))).watch(initial);
+            }
+            return exitCode;
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid configuration: {}", e.getMessage());
+            return 1;
         } catch (IOException e) {
             log.error("Error reading configuration file: {}", e.getMessage());
             return 1;
         }
     }
+
+    /**
+     * Returns the exit code of the first failed step in the configuration file, or 0.
+     */
+    private int logFinalResult(Map<String, Outcome> outcomes) {
+        int exitCode = 0;
+        int failed = 0;
+        int skipped = 0;
+        for (Outcome outcome : outcomes.values()) {
+            if (outcome.status() == Status.FAILED) {
+                failed++;
+                if (exitCode == 0) {
+                    exitCode = outcome.exitCode();
+                }
+            } else if (outcome.status() == Status.SKIPPED) {
+                skipped++;
+            }
+        }
+        if (failed == 0) {
+            if (verbose) {
+                log.info("All {} steps completed successfully", outcomes.size());
+            }
+        } else {
+            log.error("{} of {} steps failed, {} skipped", failed, outcomes.size(), skipped);
+        }
+        return exitCode;
+    }
 } 
\ No newline at end of file
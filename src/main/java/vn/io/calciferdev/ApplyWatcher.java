@@ -0,0 +1,419 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.regex.Pattern;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The loop of {@code apply --watch}. Every folder that one of the steps would visit is registered with a
+ * {@link WatchService}, from the listings the first run left in its {@link TreeSnapshot}; folders created
+ * later are registered as they appear. Events are collected until none arrived for the debounce interval, and
+ * then only the steps whose folders contain a changed file run, in dependency order and only on the
+ * changed files: replace steps rewrite them, copy steps copy or delete them, run steps run in the
+ * affected input folders. Files changed by one step are passed on to the steps after it.
+ * <p>
+ * The watcher's own writes also raise events. The size and modification time of every file a step
+ * wrote are remembered, and an event for a file that still has them is dropped. Events for files that
+ * no longer exist are only kept for files that existed before, which drops the temporary files of
+ * atomic replacements. Run steps and full runs do not say which files they wrote, so the events that
+ * arrive while they run and within the debounce interval after are taken as their own writes; changes
+ * made by others at that time are not applied until the files change again. If the event queue
+ * overflows, all steps run in full once.
+ * <p>
+ * Folder names are only replaced by full runs; changed files are rewritten in place.
+ */
+@Slf4j
+class ApplyWatcher {
+
+    private static final int MAX_DEBOUNCE_FACTOR = 10;
+
+    private record Stamp(long size, long modified) {
+        static Stamp of(BasicFileAttributes attrs) {
+            return new Stamp(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * One input folder of one step, with the filter of that step and the folders it entered.
+     */
+    private static class Target {
+        final ApplyCommand.Step step;
+        final Path root;
+        final PathFilter filter;
+        final Set<Path> entered = new HashSet<>();
+
+        Target(ApplyCommand.Step step, Path root, PathFilter filter) {
+            this.step = step;
+            this.root = root;
+            this.filter = filter;
+        }
+
+        boolean accepts(Path file) {
+            return file.startsWith(root) && entered.contains(file.getParent()) && filter.acceptFile(file);
+        }
+    }
+
+    private final ApplyCommand apply;
+    private final List<ApplyCommand.Step> steps;
+    private final long debounceMillis;
+    private final IntSupplier fullRun;
+    private final List<Target> targets = new ArrayList<>();
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Set<Long> known = new HashSet<>();
+    private final Map<Path, Stamp> written = new HashMap<>();
+    private final Map<ApplyCommand.Step, ReplaceCommand> replaceCommands = new HashMap<>();
+    private WatchService watchService;
+    private ForkJoinPool pool;
+
+    ApplyWatcher(ApplyCommand apply, List<ApplyCommand.Step> steps, long debounceMillis, IntSupplier fullRun) {
+        this.apply = apply;
+        this.steps = steps;
+        this.debounceMillis = Math.max(1, debounceMillis);
+        this.fullRun = fullRun;
+    }
+
+    /**
+     * Watches until the thread is interrupted. {@code snapshot} holds the listings of the first run.
+     */
+    int watch(TreeSnapshot snapshot) {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            watchService = service;
+            for (ApplyCommand.Step step : steps) {
+                if (step.configs().stream().anyMatch(ApplyCommand.CommandConfig::isReplaceFolderNames)) {
+                    log.warn("Step {} replaces folder names, which watch mode only does when it runs all steps", step.id());
+                }
+                ApplyCommand.CommandConfig config = step.configs().get(0);
+                for (String input : config.getInputPaths() != null ? config.getInputPaths() : List.<String>of()) {
+                    Path root = Invocation.resolve(input).toAbsolutePath().normalize();
+                    targets.add(new Target(step, root, filter(config, root)));
+                }
+            }
+            for (Target target : targets) {
+                if (targets.stream().noneMatch(other -> !other.root.equals(target.root) && target.root.startsWith(other.root))
+                        && Files.isDirectory(target.root)) {
+                    register(target.root, null, snapshot);
+                }
+            }
+            log.info("Watching {} folders for changes", directories.size());
+            while (true) {
+                Set<Path> changed = nextBatch();
+                if (changed == null) {
+                    log.warn("Too many changes at once, running all steps");
+                    fullRun.getAsInt();
+                    absorbOwnWrites();
+                } else {
+                    process(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (IOException e) {
+            log.error("Error watching for changes: {}", e.getMessage());
+            return 1;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static PathFilter filter(ApplyCommand.CommandConfig config, Path root) throws IOException {
+        return switch (config.getType().toLowerCase()) {
+            case "replace" -> new PathFilter(root, config.getIgnorePattern() != null ? Pattern.compile(config.getIgnorePattern()) : null,
+                    config.getExcludes(), !Boolean.FALSE.equals(config.getGitignore()));
+            case "copy" -> new PathFilter(root, null, null, false);
+            default -> new PathFilter(root, null, null, true);
+        };
+    }
+
+    /**
+     * Walks a new folder, registers every subfolder a target enters and adds the files found to
+     * {@code found}, if given. Listings in {@code snapshot}, if given, are used instead of reading the
+     * folders again.
+     */
+    private void register(Path start, Set<Path> found, TreeSnapshot snapshot) throws IOException {
+        new TreeWalker(pool, apply.getMetrics(), snapshot).walk(start, new TreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                synchronized (ApplyWatcher.this) {
+                    boolean watched = false;
+                    boolean ancestor = false;
+                    for (Target target : targets) {
+                        if (!target.root.equals(dir) && target.root.startsWith(dir)) {
+                            ancestor = true;
+                        } else if (dir.startsWith(target.root) && (dir.equals(target.root) || target.entered.contains(dir.getParent()))
+                                && target.filter.enterDirectory(dir)) {
+                            target.entered.add(dir);
+                            watched = true;
+                        }
+                    }
+                    if (watched) {
+                        try {
+                            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                            directories.put(key, dir);
+                        } catch (IOException e) {
+                            visitFailed(dir, e);
+                        }
+                    }
+                    return watched || ancestor;
+                }
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                synchronized (ApplyWatcher.this) {
+                    known.add(FileStateIndex.hash(file.toString()));
+                    if (found != null && !Stamp.of(attrs).equals(written.remove(file))) {
+                        found.add(file);
+                    }
+                }
+            }
+
+            @Override
+            public void visitFailed(Path path, IOException e) {
+                log.error("Error watching {}: {}", path, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Waits for the next change and collects changes until none arrived for the debounce interval, or
+     * for at most ten intervals. Returns null if events were lost.
+     */
+    private Set<Path> nextBatch() throws InterruptedException {
+        Set<Path> changed = new LinkedHashSet<>();
+        return collect(watchService.take(), changed) ? null : changed;
+    }
+
+    /**
+     * Adds the paths of the events of {@code key} and of the keys signalled after it to {@code changed},
+     * until none was for the debounce interval. Returns whether events were lost.
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_DEBOUNCE_FACTOR * debounceMillis;
+        boolean overflow = false;
+        while (key != null) {
+            Path dir = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (dir != null) {
+                    changed.add(dir.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+            long wait = Math.min(debounceMillis, deadline - System.currentTimeMillis());
+            key = wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+        }
+        return overflow;
+    }
+
+    /**
+     * Takes the pending events as raised by the watcher's own writes: their files are remembered as
+     * written, and new folders are registered without running any step on their files.
+     */
+    private void absorbOwnWrites() throws InterruptedException, IOException {
+        Set<Path> changed = new LinkedHashSet<>();
+        collect(watchService.poll(debounceMillis, TimeUnit.MILLISECONDS), changed);
+        for (Path path : changed) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                written.remove(path);
+                continue;
+            }
+            if (attrs.isDirectory()) {
+                if (!directories.containsValue(path)) {
+                    register(path, null, null);
+                }
+            } else {
+                known.add(FileStateIndex.hash(path.toString()));
+                written.put(path, Stamp.of(attrs));
+            }
+        }
+    }
+
+    private void process(Set<Path> events) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Set<Path> modified = new LinkedHashSet<>();
+        Set<Path> deleted = new LinkedHashSet<>();
+        for (Path path : events) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                written.remove(path);
+                if (known.contains(FileStateIndex.hash(path.toString()))) {
+                    deleted.add(path);
+                }
+                continue;
+            }
+            if (attrs.isDirectory()) {
+                if (!directories.containsValue(path)) {
+                    register(path, modified, null);
+                }
+                continue;
+            }
+            known.add(FileStateIndex.hash(path.toString()));
+            if (!Stamp.of(attrs).equals(written.remove(path))) {
+                modified.add(path);
+            }
+        }
+        if (modified.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+        log.info("{} files changed, {} deleted", modified.size(), deleted.size());
+        Set<String> failed = new HashSet<>();
+        for (ApplyCommand.Step step : steps) {
+            if (step.dependsOn().stream().anyMatch(failed::contains)) {
+                failed.add(step.id());
+                log.warn("Skipping step {} because a step it depends on did not succeed", step.id());
+                continue;
+            }
+            int exitCode;
+            try {
+                exitCode = runStep(step, modified, deleted);
+            } catch (IOException | RuntimeException e) {
+                log.error("Step {} failed: {}", step.id(), e.getMessage());
+                exitCode = 1;
+            }
+            if (exitCode != 0) {
+                failed.add(step.id());
+                log.error("Step {} failed with exit code {}", step.id(), exitCode);
+            }
+        }
+        log.info("Changes applied in {} ms, watching", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Runs one step on the changes inside its folders. Files the step writes are remembered as its own
+     * and added to {@code modified} for the steps after it.
+     */
+    private int runStep(ApplyCommand.Step step, Set<Path> modified, Set<Path> deleted) throws IOException, InterruptedException {
+        List<Target> stepTargets = targets.stream().filter(target -> target.step == step).toList();
+        ApplyCommand.CommandConfig config = step.configs().get(0);
+        switch (config.getType().toLowerCase()) {
+            case "replace" -> {
+                List<Path> files = modified.stream().filter(file -> stepTargets.stream().anyMatch(t -> t.accepts(file))).toList();
+                if (files.isEmpty()) {
+                    return 0;
+                }
+                ReplaceCommand command = replaceCommands.computeIfAbsent(step, s -> apply.createFusedReplaceCommand(s.configs()));
+                for (Path file : command.rewriteFiles(files)) {
+                    remember(file);
+                }
+                return 0;
+            }
+            case "copy" -> {
+                Path destination = Invocation.resolve(config.getDestination()).toAbsolutePath().normalize();
+                CopyEngine.Options options = new CopyEngine.Options();
+                options.setSync(config.isSync() || config.isChecksum());
+                options.setChecksum(config.isChecksum());
+                options.setDelete(config.isDelete());
+                options.setConcurrency(apply.getConcurrency());
+                if (config.isDedup() || config.getDedupStore() != null) {
+                    options.setContentStore(apply.contentStore(config.getDedupStore()));
+                }
+                ForkJoinPool copyPool = new ForkJoinPool(CopyCommand.parallelism(
+                        config.getThreads() != null ? config.getThreads() : 0, apply.getConcurrency()));
+                CopyEngine.Stats stats = new CopyEngine.Stats();
+                List<Path> copied = new ArrayList<>();
+                try {
+                    CopyEngine engine = new CopyEngine(new TreeWalker(copyPool, apply.getMetrics()), options, apply.getMetrics(), apply.isVerbose());
+                    List<ForkJoinTask<Path>> tasks = new ArrayList<>();
+                    for (Target target : stepTargets) {
+                        Path name = target.root.getFileName();
+                        Path base = name == null ? destination : destination.resolve(name.toString());
+                        if (options.isSync() && options.isDelete()) {
+                            for (Path file : deleted) {
+                                if (target.accepts(file)) {
+                                    Path copy = CopyEngine.resolve(target.root, file, base);
+                                    if (Files.isDirectory(copy, LinkOption.NOFOLLOW_LINKS)) {
+                                        CopyEngine.deleteTree(copy);
+                                    } else {
+                                        Files.deleteIfExists(copy);
+                                    }
+                                }
+                            }
+                        }
+                        for (Path file : modified) {
+                            if (target.accepts(file)) {
+                                Path copy = CopyEngine.resolve(target.root, file, base);
+                                tasks.add(copyPool.submit(() -> {
+                                    try {
+                                        Files.createDirectories(copy.getParent());
+                                        engine.copyFile(file, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS),
+                                                copy, stats);
+                                    } catch (IOException e) {
+                                        stats.errors.increment();
+                                        log.error("Error copying {}: {}", file, e.getMessage());
+                                    }
+                                    return copy;
+                                }));
+                            }
+                        }
+                    }
+                    for (ForkJoinTask<Path> task : tasks) {
+                        copied.add(task.join());
+                    }
+                } finally {
+                    copyPool.shutdown();
+                }
+                for (Path copy : copied) {
+                    remember(copy);
+                    modified.add(copy);
+                }
+                apply.saveContentStores();
+                return stats.errors.sum() > 0 ? 1 : 0;
+            }
+            default -> {
+                List<String> folders = stepTargets.stream()
+                        .filter(target -> modified.stream().anyMatch(target::accepts) || deleted.stream().anyMatch(target::accepts))
+                        .map(target -> target.root.toString())
+                        .toList();
+                if (folders.isEmpty()) {
+                    return 0;
+                }
+                RunCommand command = apply.createRunCommand(config);
+                command.setInputPaths(folders);
+                int exitCode = command.call();
+                absorbOwnWrites();
+                return exitCode;
+            }
+        }
+    }
+
+    private void remember(Path file) {
+        try {
+            written.put(file, Stamp.of(Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+        } catch (IOException e) {
+            written.remove(file);
+        }
+    }
+}
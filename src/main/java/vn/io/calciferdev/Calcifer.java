@@ -17,13 +17,18 @@ public class Calcifer implements Callable<Integer> {
         return 0;
     }
 
-    public static void main(String[] args) {
-        int exitCode = new CommandLine(new Calcifer())
+    static CommandLine commandLine() {
+        return new CommandLine(new Calcifer())
                 .addSubcommand("run", new RunCommand())
                 .addSubcommand("replace", new ReplaceCommand())
                 .addSubcommand("copy", new CopyCommand())
                 .addSubcommand("apply", new ApplyCommand())
-                .execute(args);
+                .addSubcommand("daemon", new DaemonCommand())
+                .setCaseInsensitiveEnumValuesAllowed(true);
+    }
+
+    public static void main(String[] args) {
+        int exitCode = commandLine().execute(args);
         System.exit(exitCode);
     }
 } 
\ No newline at end of file
@@ -0,0 +1,96 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+/**
+ * Command line front end for a running {@code calcifer daemon}. It forwards the arguments, working
+ * directory and environment, copies the output frames to its own stdout and stderr and exits with the
+ * daemon's exit code. Without a daemon the command runs in this JVM instead, and so it does when the
+ * socket is not this user's own, since everything sent to it would go to whoever made it.
+ * <p>
+ * The client is a JVM of its own, so each call still pays for starting one; what the daemon saves is
+ * loading and warming up the commands. Commands that would hold the daemon for good are refused.
+ */
+public class CalciferClient {
+
+    public static void main(String[] args) {
+        String unsupported = DaemonProtocol.unsupported(args);
+        if (unsupported != null) {
+            System.err.println("calcifer: " + unsupported + "; run it with java -jar instead of the client");
+            System.exit(2);
+        }
+        if (readsStandardInput(args)) {
+            // The daemon has no access to this process's standard input.
+            Calcifer.main(args);
+            return;
+        }
+        Path socket = DaemonProtocol.socketPath();
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            Calcifer.main(args);
+            return;
+        }
+        if (!DaemonProtocol.isTrusted(socket)) {
+            System.err.println("calcifer: ignoring " + socket + ", it is not a socket only this user can reach");
+            Calcifer.main(args);
+            return;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException | UnsupportedOperationException e) {
+            Calcifer.main(args);
+            return;
+        }
+        System.exit(forward(channel, args));
+    }
+
+    private static boolean readsStandardInput(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            boolean option = args[i].equals("-f") || args[i].equals("--folder-list");
+            if (option && i + 1 < args.length && args[i + 1].equals("-")
+                    || args[i].equals("-f-") || args[i].equals("--folder-list=-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int forward(SocketChannel channel, String[] args) {
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DaemonProtocol.writeRequest(out, new DaemonProtocol.Request(
+                    Path.of("").toAbsolutePath(), args, System.getenv()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                byte type = in.readByte();
+                if (type == DaemonProtocol.EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                byte[] bytes = in.readNBytes(in.readInt());
+                PrintStream target = type == DaemonProtocol.STDERR ? System.err : System.out;
+                target.write(bytes, 0, bytes.length);
+                target.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("calcifer: the daemon closed the connection before the command finished");
+            return 1;
+        } catch (IOException e) {
+            System.err.println("calcifer: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adaptive limits on concurrent work for {@code --adaptive}, one per kind of resource the work is bound
+ * by: rewriting files is bound by the CPU, copying by the disk and running commands by child processes.
+ * Each task takes a {@link Permit} of its kind, which waits while the limit of that kind is reached.
+ * <p>
+ * The limits follow the latency of the tasks, as gradient limiters do: a long-term average of the
+ * latency is compared with a short-term one, and while the short-term latency stays below 1.5 times the
+ * long-term one the limit grows by a fraction of its square root per task; beyond that it shrinks
+ * in proportion. A task that failed in a way that points to overload (a timeout, running out of file
+ * handles or other system resources) cuts the limit by a tenth, as AIMD does; other failures, such as a
+ * missing file or content that is not UTF-8, count as ordinary tasks. The limit does not grow while fewer than half its permits are used.
+ * <p>
+ * On top of that, the number of open files and of child processes over all kinds is capped, so
+ * concurrent {@code apply} steps together stay within the limits of the system.
+ */
+@Slf4j
+public class ConcurrencyController {
+
+    public static final int DEFAULT_MAX_OPEN_FILES = 512;
+
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double SHORT_WINDOW = 0.5;
+    private static final double LONG_WINDOW = 0.01;
+    private static final double BACKOFF = 0.9;
+
+    /**
+     * What a task is bound by, with the files and processes it holds open while it runs.
+     */
+    public enum Resource {
+        CPU(2, 0), DISK(2, 0), PROCESS(2, 1);
+
+        private final int files;
+        private final int processes;
+
+        Resource(int files, int processes) {
+            this.files = files;
+            this.processes = processes;
+        }
+    }
+
+    private final Limit[] limits = new Limit[Resource.values().length];
+    private final int maxOpenFiles;
+    private final int maxProcesses;
+    private final Semaphore openFiles;
+    private final Semaphore processes;
+
+    /**
+     * @param maxOpenFiles files open at the same time over all tasks
+     * @param maxProcesses child processes running at the same time
+     */
+    public ConcurrencyController(int maxOpenFiles, int maxProcesses) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.maxOpenFiles = Math.max(2, maxOpenFiles);
+        this.maxProcesses = Math.max(1, maxProcesses);
+        this.openFiles = new Semaphore(this.maxOpenFiles);
+        this.processes = new Semaphore(this.maxProcesses);
+        limits[Resource.CPU.ordinal()] = new Limit(Resource.CPU, processors, 2 * processors);
+        limits[Resource.DISK.ordinal()] = new Limit(Resource.DISK, processors, Math.min(this.maxOpenFiles / 2, 8 * processors));
+        limits[Resource.PROCESS.ordinal()] = new Limit(Resource.PROCESS, Math.max(1, processors / 2), this.maxProcesses);
+    }
+
+    public ConcurrencyController() {
+        this(DEFAULT_MAX_OPEN_FILES, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The most tasks of a kind that can ever run at once, which is as many threads as are useful for it.
+     */
+    public int maxConcurrency(Resource resource) {
+        return limits[resource.ordinal()].max;
+    }
+
+    /**
+     * Waits until a task of the given kind may start.
+     */
+    public Permit acquire(Resource resource) {
+        long start = System.nanoTime();
+        Limit limit = limits[resource.ordinal()];
+        limit.acquire();
+        openFiles.acquireUninterruptibly(Math.min(resource.files, maxOpenFiles));
+        processes.acquireUninterruptibly(Math.min(resource.processes, maxProcesses));
+        long now = System.nanoTime();
+        limit.queued.add(now - start);
+        return new Permit(resource, now);
+    }
+
+    public void logSummary() {
+        for (Limit limit : limits) {
+            long tasks = limit.tasks.sum();
+            if (tasks == 0) {
+                continue;
+            }
+            double seconds = Math.max(1, limit.busyNanos()) / 1e9;
+            log.info(String.format(Locale.ROOT,
+                    "Adaptive %s limit %d (peak %d, max %d): %d tasks, %.1f per second, %.2f ms queued and %.2f ms running on average",
+                    limit.resource.name().toLowerCase(Locale.ROOT), (int) limit.limit(), limit.peak, limit.max, tasks,
+                    tasks / seconds, limit.queued.sum() / 1e6 / tasks, limit.running.sum() / 1e6 / tasks));
+        }
+    }
+
+    /**
+     * Whether an I/O error comes from the system being overloaded rather than from the file itself: a
+     * timeout, or too many open files, processes or other resources in use.
+     */
+    static boolean isOverload(IOException e) {
+        if (e instanceof InterruptedIOException) {
+            return true;
+        }
+        String message = e.getMessage();
+        if (message == null) {
+            return false;
+        }
+        String lower = message.toLowerCase(Locale.ROOT);
+        return lower.contains("too many open files") || lower.contains("resource temporarily unavailable")
+                || lower.contains("no buffer space") || lower.contains("timed out");
+    }
+
+    /**
+     * A running task. Closing it frees its slot and feeds its latency to the limit; mark it
+     * {@link #dropped()} first when it failed from overload.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Resource resource;
+        private final long start;
+        private boolean dropped;
+        private boolean closed;
+
+        private Permit(Resource resource, long start) {
+            this.resource = resource;
+            this.start = start;
+        }
+
+        public void dropped() {
+            dropped = true;
+        }
+
+        /**
+         * Marks the task {@link #dropped()} when it failed with an error that points to overload.
+         */
+        public void failed(IOException e) {
+            if (isOverload(e)) {
+                dropped = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            processes.release(Math.min(resource.processes, maxProcesses));
+            openFiles.release(Math.min(resource.files, maxOpenFiles));
+            limits[resource.ordinal()].release(System.nanoTime() - start, dropped);
+        }
+    }
+
+    private static class Limit {
+        final Resource resource;
+        final int max;
+        final LongAdder tasks = new LongAdder();
+        final LongAdder queued = new LongAdder();
+        final LongAdder running = new LongAdder();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private double limit;
+        private double shortLatency;
+        private double longLatency;
+        private int inFlight;
+        private int peak;
+        private long firstStart;
+        private long lastEnd;
+
+        Limit(Resource resource, int initial, int max) {
+            this.resource = resource;
+            this.max = Math.max(1, max);
+            this.limit = Math.min(Math.max(1, initial), this.max);
+        }
+
+        void acquire() {
+            lock.lock();
+            try {
+                while (inFlight >= (int) limit) {
+                    available.awaitUninterruptibly();
+                }
+                inFlight++;
+                peak = Math.max(peak, inFlight);
+                if (firstStart == 0) {
+                    firstStart = System.nanoTime();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long latency, boolean dropped) {
+            tasks.increment();
+            running.add(latency);
+            lock.lock();
+            try {
+                int used = inFlight--;
+                lastEnd = System.nanoTime();
+                update(latency, used, dropped);
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void update(long latency, int used, boolean dropped) {
+            if (dropped) {
+                limit = Math.max(1, limit * BACKOFF);
+                return;
+            }
+            if (longLatency == 0) {
+                shortLatency = latency;
+                longLatency = latency;
+                return;
+            }
+            shortLatency += SHORT_WINDOW * (latency - shortLatency);
+            longLatency += LONG_WINDOW * (latency - longLatency);
+            if (longLatency > 2 * shortLatency) {
+                // The work got faster for good; let the baseline follow instead of growing for long.
+                longLatency *= 0.95;
+            }
+            if (used < limit / 2) {
+                return;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+            double next = limit * gradient + Math.sqrt(limit);
+            limit = Math.max(1, Math.min(max, (1 - SMOOTHING) * limit + SMOOTHING * next));
+        }
+
+        double limit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long busyNanos() {
+            lock.lock();
+            try {
+                return lastEnd - firstStart;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package vn.io.calciferdev;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rewrites content one window at a time. A window holds the bytes from its {@code position()} to its
+ * {@code limit()}; bytes before the position were already consumed and are only there as context.
+ * Callers overlap consecutive windows by {@link #overlap()} bytes so matches crossing a window
+ * boundary are still seen.
+ */
+public interface ContentReplacer {
+
+    int overlap();
+
+    /**
+     * Describes the rules so that two replacers with equal fingerprints make the same changes.
+     */
+    String fingerprint();
+
+    /**
+     * Returns whether a match starts in the window, without moving its position.
+     */
+    boolean find(ByteBuffer window, boolean last) throws IOException;
+
+    /**
+     * Writes the window from its position onwards to {@code out}, applying matches that start before
+     * {@code commitLimit}, and returns the index up to which the window has been consumed. On the
+     * last window the whole window is consumed.
+     */
+    int replace(ByteBuffer window, int commitLimit, boolean last, Output out) throws IOException;
+
+    /**
+     * Returns the rewritten content, or {@code null} when nothing in {@code content} changed.
+     */
+    default byte[] replace(byte[] content) throws IOException {
+        return replace(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Returns the rewritten content of the whole buffer, or {@code null} when nothing changed.
+     */
+    default byte[] replace(ByteBuffer content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.limit() + 64);
+        Output out = new Output(Channels.newChannel(bytes));
+        replace(content.duplicate().position(0), content.limit(), true, out);
+        return out.isChanged() ? bytes.toByteArray() : null;
+    }
+
+    default String replace(String text) {
+        try {
+            byte[] replaced = replace(text.getBytes(StandardCharsets.UTF_8));
+            return replaced == null ? text : new String(replaced, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return text;
+        }
+    }
+
+    class Output {
+        private final WritableByteChannel channel;
+        private boolean changed;
+
+        public Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public void write(ByteBuffer window, int from, int to) throws IOException {
+            if (to > from) {
+                ByteBuffer slice = window.duplicate().limit(to).position(from);
+                while (slice.hasRemaining()) {
+                    channel.write(slice);
+                }
+            }
+        }
+
+        public void write(byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        public void markChanged() {
+            changed = true;
+        }
+
+        public boolean isChanged() {
+            return changed;
+        }
+    }
+}
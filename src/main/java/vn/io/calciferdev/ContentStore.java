@@ -0,0 +1,234 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store of files written by {@code copy --dedup}. Every copied file is recorded under
+ * the SHA-256 of its content together with its size, modification time and permissions; a later copy of
+ * the same content is made a hard link to the recorded file instead of being written again. The
+ * metadata is part of the key because linked files share it, and a recorded file is only linked while
+ * its size and modification time are unchanged. Linking fails across file systems, and then the file is
+ * copied as usual.
+ * <p>
+ * Source hashes are cached by path, size and modification time, so a folder copied to many destinations
+ * is read once. The store can be saved and loaded again by later runs.
+ *
+ * <pre>
+ * header: int magic, int version, long count
+ * record: 32-byte digest, long size, long modified (ms), int mode, path as int length + UTF-8 bytes
+ * </pre>
+ */
+public class ContentStore {
+
+    private static final int MAGIC = 0x43464353;
+    private static final int VERSION = 1;
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    private record Key(String digest, long size, long modified, int mode) {
+    }
+
+    private record Hashed(long size, long modified, String digest) {
+    }
+
+    private final Path file;
+    private final Map<Key, Path> stored = new ConcurrentHashMap<>();
+    private final Map<Path, Hashed> sourceHashes = new ConcurrentHashMap<>();
+    private volatile boolean changed;
+
+    private ContentStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * A store that lives as long as the process.
+     */
+    public static ContentStore inMemory() {
+        return new ContentStore(null);
+    }
+
+    /**
+     * Loads the store saved in {@code file}, or starts an empty one if there is none yet.
+     */
+    public static ContentStore open(Path file) throws IOException {
+        ContentStore store = new ContentStore(file);
+        if (!Files.exists(file)) {
+            return store;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException(file + " is not a content store");
+            }
+            long count = in.readLong();
+            byte[] digest = new byte[32];
+            for (long i = 0; i < count; i++) {
+                in.readFully(digest);
+                Key key = new Key(HexFormat.of().formatHex(digest), in.readLong(), in.readLong(), in.readInt());
+                byte[] path = new byte[in.readInt()];
+                in.readFully(path);
+                store.stored.put(key, Path.of(new String(path, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            throw new IOException("The content store " + file + " is truncated");
+        }
+        return store;
+    }
+
+    /**
+     * Makes {@code target} a hard link to a stored file with the content and metadata of {@code source}.
+     * Returns false when there is none or it cannot be linked, and the caller has to copy.
+     */
+    public boolean link(Path source, BasicFileAttributes attrs, Path target, Metrics metrics) throws IOException {
+        if (attrs.size() == 0) {
+            return false;
+        }
+        Key key = key(source, attrs, metrics);
+        Path existing = stored.get(key);
+        if (existing == null || !isIntact(existing, key)) {
+            return false;
+        }
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(existing, target)) {
+            return true;
+        }
+        Path temp = target.resolveSibling("." + target.getFileName() + ".link");
+        try {
+            Files.createLink(temp, existing);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Another file system, or one without hard links.
+            Files.deleteIfExists(temp);
+            return false;
+        }
+        try {
+            FileRewriter.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Records {@code target}, just copied from {@code source}, as the file to link later copies to.
+     */
+    public void add(Path source, BasicFileAttributes attrs, Path target, Metrics metrics) throws IOException {
+        if (attrs.size() == 0) {
+            return;
+        }
+        Key key = key(source, attrs, metrics);
+        Path absolute = target.toAbsolutePath().normalize();
+        Path previous = stored.put(key, absolute);
+        if (!absolute.equals(previous)) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Writes a store opened from a file back to it; an in-memory store is not saved.
+     */
+    public synchronized void save() throws IOException {
+        if (file == null || !changed) {
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                Map<Key, Path> snapshot = Map.copyOf(stored);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(snapshot.size());
+                for (Map.Entry<Key, Path> entry : snapshot.entrySet()) {
+                    Key key = entry.getKey();
+                    out.write(HexFormat.of().parseHex(key.digest()));
+                    out.writeLong(key.size());
+                    out.writeLong(key.modified());
+                    out.writeInt(key.mode());
+                    byte[] path = entry.getValue().toString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(path.length);
+                    out.write(path);
+                }
+            }
+            FileRewriter.moveAtomically(temp, file);
+            changed = false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Key key(Path source, BasicFileAttributes attrs, Metrics metrics) throws IOException {
+        long modified = attrs.lastModifiedTime().toMillis();
+        Path absolute = source.toAbsolutePath().normalize();
+        Hashed hashed = sourceHashes.get(absolute);
+        if (hashed == null || hashed.size() != attrs.size() || hashed.modified() != modified) {
+            hashed = new Hashed(attrs.size(), modified, digest(source, metrics));
+            sourceHashes.put(absolute, hashed);
+        }
+        return new Key(hashed.digest(), attrs.size(), modified, mode(source));
+    }
+
+    private static boolean isIntact(Path path, Key key) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attrs.isRegularFile() && attrs.size() == key.size()
+                    && attrs.lastModifiedTime().toMillis() == key.modified() && mode(path) == key.mode();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static String digest(Path source, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        MessageDigest digest = SHA_256.get();
+        digest.reset();
+        ByteBuffer buffer = BUFFER.get();
+        long read = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            int n;
+            while ((n = in.read(buffer.clear())) > 0) {
+                digest.update(buffer.flip());
+                read += n;
+            }
+        } finally {
+            metrics.bytesRead(read);
+            metrics.record(Metrics.Phase.READ, start);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static int mode(Path path) throws IOException {
+        try {
+            int mode = 0;
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS)) {
+                mode |= 1 << permission.ordinal();
+            }
+            return mode;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+}
@@ -1,14 +1,12 @@
 package vn.io.calciferdev;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -30,26 +28,133 @@ public class CopyCommand implements Callable<Integer> {
     @Option(names = {"-i", "--input"}, description = "Input folder paths", arity = "0..*")
     private List<String> inputPaths;
 
+    @Option(names = {"-0", "--null"}, description = "Entries in the folder list are separated by NUL characters, as printed by find -print0")
+    private boolean nullSeparated;
+
     @Option(names = {"-v", "--verbose"}, description = "Enable verbose output")
     private boolean verbose;
 
+    @Option(names = {"--native"}, description = "Copy with the operating system's cp -r / robocopy instead of the in-process engine")
+    private boolean nativeCopy;
+
+    @Option(names = {"--sync"}, description = "Only copy files whose size or modification time differ from the destination")
+    private boolean sync;
+
+    @Option(names = {"--checksum"}, description = "With --sync, compare file content instead of modification times")
+    private boolean checksum;
+
+    @Option(names = {"--delete"}, description = "With --sync, delete destination entries that no longer exist in the source")
+    private boolean delete;
+
+    @Option(names = {"--dedup"}, description = "Hard link files whose content was copied before instead of writing them again")
+    private boolean dedup;
+
+    @Option(names = {"--dedup-store"}, description = "File keeping the content hashes of copied files across runs; implies --dedup")
+    private Path dedupStore;
+
+    @Option(names = {"--threads"}, description = "Number of threads used by the in-process copy (default: number of processors)")
+    private int threads;
+
+    @Option(names = {"--adaptive"}, description = "Adjust the number of files copied at once to their latency, up to --threads or eight times the number of processors")
+    private boolean adaptive;
+
+    @Option(names = {"--stats"}, description = "Log a table of time per phase, folder latencies, bytes and skipped files")
+    private boolean stats;
+
+    @Option(names = {"--stats-file"}, description = "Write the statistics as JSON to this file")
+    private Path statsFile;
+
+    /**
+     * Metrics shared with the caller, set when {@code apply} reports them for all of its steps.
+     */
+    private Metrics metrics;
+
+    /**
+     * Content store shared with the caller, set when {@code apply} dedups across its copy steps.
+     */
+    private ContentStore contentStore;
+
+    /**
+     * Listings shared with the caller, set when {@code apply} lets its steps walk each tree once. The
+     * copies are dropped from it, as they are written without it.
+     */
+    private TreeSnapshot snapshot;
+
+    /**
+     * Concurrency limits shared with the caller, set when {@code apply --adaptive} runs its steps.
+     */
+    private ConcurrencyController concurrency;
+
     private static class ProcessResult {
         int successCount;
         int failureCount;
+        long filesCopied;
+        long bytesCopied;
+        long filesUnchanged;
+        long bytesUnchanged;
+        long filesLinked;
+        long bytesLinked;
+        long entriesDeleted;
+    }
+
+    /**
+     * Threads for the in-process copy: {@code --threads} when given, else as many as the adaptive disk
+     * limit can use, else one per processor.
+     */
+    static int parallelism(int threads, ConcurrencyController concurrency) {
+        return threads > 0 ? threads
+                : concurrency != null ? concurrency.maxConcurrency(ConcurrencyController.Resource.DISK)
+                : Runtime.getRuntime().availableProcessors();
     }
 
     @Override
     public Integer call() {
-        try {
-            List<String> targetFolders = getTargetFolders();
-            if (targetFolders.isEmpty()) {
+        try (TargetFolders targetFolders = TargetFolders.open(folderListFile, inputPaths, nullSeparated)) {
+            Path destPath = createDestinationDirectory();
+            ProcessResult result = new ProcessResult();
+            boolean ownMetrics = metrics == null;
+            if (ownMetrics) {
+                metrics = new Metrics();
+            }
+            boolean ownConcurrency = adaptive && concurrency == null;
+            if (ownConcurrency) {
+                concurrency = new ConcurrencyController();
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism(threads, concurrency));
+            try {
+                CopyEngine.Options options = new CopyEngine.Options();
+                options.setSync(sync || checksum);
+                options.setChecksum(checksum);
+                options.setDelete(delete);
+                if (delete && !options.isSync()) {
+                    throw new IllegalArgumentException("--delete requires --sync");
+                }
+                boolean ownStore = contentStore == null && (dedup || dedupStore != null);
+                if (nativeCopy && (ownStore || contentStore != null)) {
+                    throw new IllegalArgumentException("--dedup cannot be used with --native");
+                }
+                if (ownStore) {
+                    contentStore = dedupStore != null ? ContentStore.open(Invocation.resolve(dedupStore)) : ContentStore.inMemory();
+                }
+                options.setContentStore(contentStore);
+                options.setConcurrency(concurrency);
+                processFolders(targetFolders, destPath, new CopyEngine(new TreeWalker(pool, metrics, snapshot), options, metrics, verbose), result);
+                if (ownStore) {
+                    contentStore.save();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            if (targetFolders.count() == 0) {
                 log.error("No folders specified. Use either -f or -i option.");
                 return 1;
             }
-
-            Path destPath = createDestinationDirectory();
-            ProcessResult result = new ProcessResult();
-            processFolders(targetFolders, destPath, result);
+            if (ownMetrics) {
+                metrics.report("copy", stats, statsFile);
+            }
+            if (ownConcurrency) {
+                concurrency.logSummary();
+            }
             return logFinalResult(result);
         } catch (Exception e) {
             log.error("Error during copy: {}", e.getMessage());
@@ -57,28 +162,8 @@ public class CopyCommand implements Callable<Integer> {
         }
     }
 
-    private List<String> getTargetFolders() throws IOException {
-        List<String> folders = new ArrayList<>();
-        if (folderListFile != null && inputPaths != null) {
-            throw new IllegalArgumentException("Cannot use both -f and -i options simultaneously");
-        }
-        if (folderListFile != null) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(folderListFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    folders.add(line.trim());
-                }
-            }
-        } else if (inputPaths != null) {
-            folders.addAll(inputPaths);
-        } else {
-            throw new IllegalArgumentException("Either -f or -i option must be specified");
-        }
-        return folders;
-    }
-
     private Path createDestinationDirectory() throws IOException {
-        Path destPath = Path.of(destination);
+        Path destPath = Invocation.resolve(destination);
         if (!Files.exists(destPath)) {
             Files.createDirectories(destPath);
             if (verbose) {
@@ -88,27 +173,53 @@ public class CopyCommand implements Callable<Integer> {
         return destPath;
     }
 
-    private void processFolders(List<String> folders, Path destPath, ProcessResult result) {
-        for (String folder : folders) {
+    private void processFolders(TargetFolders folders, Path destPath, CopyEngine engine, ProcessResult result) {
+        while (folders.hasNext()) {
+            String folder = folders.next();
             if (verbose) {
                 log.info("Processing folder: {}", folder);
             }
+            Metrics.FolderTimer timer = metrics.startFolder("copy", folder);
             try {
-                copyUsingNativeCommand(folder, destPath.toString());
+                if (nativeCopy && concurrency != null) {
+                    ConcurrencyController.Permit permit = concurrency.acquire(ConcurrencyController.Resource.PROCESS);
+                    try {
+                        copyUsingNativeCommand(folder, destPath.toString());
+                    } finally {
+                        permit.close();
+                    }
+                } else if (nativeCopy) {
+                    copyUsingNativeCommand(folder, destPath.toString());
+                } else {
+                    copyInProcess(Invocation.resolve(folder), destPath, engine, result);
+                }
+                timer.finish(true);
                 result.successCount++;
                 if (verbose) {
                     log.info("Successfully copied folder: {}", folder);
                 }
             } catch (Exception e) {
+                timer.finish(false);
                 result.failureCount++;
                 if (verbose) {
                     log.error("Failed to copy folder {}: {}", folder, e.getMessage());
                 }
             }
         }
+        if (snapshot != null) {
+            snapshot.forget(destPath);
+        }
     }
 
     private int logFinalResult(ProcessResult result) {
+        if (sync || checksum) {
+            log.info("Sync copied {} files ({} bytes), skipped {} unchanged files ({} bytes saved) and deleted {} entries",
+                result.filesCopied, result.bytesCopied, result.filesUnchanged, result.bytesUnchanged, result.entriesDeleted);
+        }
+        if (contentStore != null) {
+            log.info("Dedup linked {} files ({} bytes) to copies with the same content and copied {} files ({} bytes)",
+                result.filesLinked, result.bytesLinked, result.filesCopied, result.bytesCopied);
+        }
         if (result.failureCount == 0) {
             log.info("Copy operation completed successfully in all {} folders", result.successCount);
             return 0;
@@ -119,6 +230,25 @@ public class CopyCommand implements Callable<Integer> {
         }
     }
 
+    private void copyInProcess(Path source, Path destPath, CopyEngine engine, ProcessResult result) throws IOException {
+        Path name = source.toAbsolutePath().normalize().getFileName();
+        Path target = name == null || source.normalize().toString().isEmpty() ? destPath : destPath.resolve(name.toString());
+        CopyEngine.Stats stats = engine.copy(source, target);
+        result.filesCopied += stats.filesCopied.sum();
+        result.bytesCopied += stats.bytesCopied.sum();
+        result.filesUnchanged += stats.filesUnchanged.sum();
+        result.bytesUnchanged += stats.bytesUnchanged.sum();
+        result.filesLinked += stats.filesLinked.sum();
+        result.bytesLinked += stats.bytesLinked.sum();
+        result.entriesDeleted += stats.entriesDeleted.sum();
+        if (verbose) {
+            log.info("Copied {} files ({} bytes) from {} to {}", stats.filesCopied.sum(), stats.bytesCopied.sum(), source, target);
+        }
+        if (stats.errors.sum() > 0) {
+            throw new IOException(stats.errors.sum() + " entries could not be copied");
+        }
+    }
+
     private void copyUsingNativeCommand(String source, String destination) throws IOException {
         String os = System.getProperty("os.name").toLowerCase();
         ProcessBuilder processBuilder;
@@ -133,9 +263,14 @@ public class CopyCommand implements Callable<Integer> {
             processBuilder = new ProcessBuilder("cp", "-r", source, destination);
         }
 
+        Invocation.configure(processBuilder);
         try {
+            long start = System.nanoTime();
             Process process = processBuilder.start();
+            metrics.record(Metrics.Phase.SPAWN, start);
+            start = System.nanoTime();
             int exitCode = process.waitFor();
+            metrics.record(Metrics.Phase.WAIT, start);
             
             if (exitCode != 0) {
                 throw new IOException("Native copy command failed with exit code: " + exitCode);
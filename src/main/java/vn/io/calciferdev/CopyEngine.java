@@ -0,0 +1,268 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copies a file or directory tree in-process. Directories are walked in parallel by {@link TreeWalker},
+ * file content is moved with {@link FileChannel#transferTo} so the kernel can copy without going
+ * through user space, and permissions and timestamps are carried over. Symbolic links are copied as
+ * links. In sync mode files whose size and modification time (or content) already match are left alone
+ * and, optionally, entries missing from the source are deleted from the target. With a
+ * {@link ContentStore}, files whose content was copied before are hard linked to that copy instead.
+ */
+@Slf4j
+public class CopyEngine {
+
+    @Data
+    public static class Options {
+        private boolean sync;
+        private boolean checksum;
+        private boolean delete;
+        private ContentStore contentStore;
+        private ConcurrencyController concurrency;
+    }
+
+    public static class Stats {
+        public final LongAdder filesCopied = new LongAdder();
+        public final LongAdder bytesCopied = new LongAdder();
+        public final LongAdder filesUnchanged = new LongAdder();
+        public final LongAdder bytesUnchanged = new LongAdder();
+        public final LongAdder filesLinked = new LongAdder();
+        public final LongAdder bytesLinked = new LongAdder();
+        public final LongAdder entriesDeleted = new LongAdder();
+        public final LongAdder directoriesCreated = new LongAdder();
+        public final LongAdder errors = new LongAdder();
+    }
+
+    private final TreeWalker walker;
+    private final Options options;
+    private final Metrics metrics;
+    private final boolean verbose;
+
+    public CopyEngine(TreeWalker walker, Options options, Metrics metrics, boolean verbose) {
+        this.walker = walker;
+        this.options = options;
+        this.metrics = metrics;
+        this.verbose = verbose;
+    }
+
+    public Stats copy(Path source, Path target) throws IOException {
+        Stats stats = new Stats();
+        walker.walk(source, new TreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                try {
+                    Files.createDirectories(resolve(source, dir, target));
+                    stats.directoriesCreated.increment();
+                    return true;
+                } catch (IOException e) {
+                    visitFailed(dir, e);
+                    return false;
+                }
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                copyFile(file, attrs, resolve(source, file, target), stats);
+            }
+
+            @Override
+            public void postVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                try {
+                    if (options.isSync() && options.isDelete()) {
+                        deleteExtraneous(dir, resolve(source, dir, target), stats);
+                    }
+                    copyAttributes(dir, attrs, resolve(source, dir, target));
+                } catch (IOException e) {
+                    visitFailed(dir, e);
+                }
+            }
+
+            @Override
+            public void visitFailed(Path path, IOException e) {
+                copyFailed(path, e, stats);
+            }
+        });
+        return stats;
+    }
+
+    static Path resolve(Path source, Path path, Path target) {
+        return path.equals(source) ? target : target.resolve(source.relativize(path).toString());
+    }
+
+    /**
+     * Copies one file as {@link #copy} does, holding a disk permit when limits are adaptive and counting
+     * failures in the stats instead of throwing them.
+     */
+    void copyFile(Path file, BasicFileAttributes attrs, Path target, Stats stats) {
+        if (options.getConcurrency() == null) {
+            try {
+                copyEntry(file, attrs, target, stats);
+            } catch (IOException e) {
+                copyFailed(file, e, stats);
+            }
+            return;
+        }
+        try (ConcurrencyController.Permit permit = options.getConcurrency().acquire(ConcurrencyController.Resource.DISK)) {
+            try {
+                copyEntry(file, attrs, target, stats);
+            } catch (IOException e) {
+                permit.failed(e);
+                copyFailed(file, e, stats);
+            }
+        }
+    }
+
+    private static void copyFailed(Path path, IOException e, Stats stats) {
+        stats.errors.increment();
+        log.error("Error copying {}: {}", path, e.getMessage());
+    }
+
+    void copyEntry(Path file, BasicFileAttributes attrs, Path target, Stats stats) throws IOException {
+        Metrics.FileTimer timer = metrics.startFile(file);
+        if (options.isSync() && isUnchanged(file, attrs, target)) {
+            stats.filesUnchanged.increment();
+            stats.bytesUnchanged.add(attrs.size());
+            metrics.skipped("unchanged");
+            timer.finish("unchanged", attrs.size());
+            return;
+        }
+        if (attrs.isSymbolicLink()) {
+            Path link = Files.readSymbolicLink(file);
+            Files.deleteIfExists(target);
+            Files.createSymbolicLink(target, link);
+            return;
+        }
+        if (!attrs.isRegularFile()) {
+            throw new IOException("Not a regular file");
+        }
+        ContentStore store = options.getContentStore();
+        if (store != null && store.link(file, attrs, target, metrics)) {
+            metrics.skipped("linked");
+            timer.finish("linked", attrs.size());
+            stats.filesLinked.increment();
+            stats.bytesLinked.add(attrs.size());
+            if (verbose) {
+                log.info("Linked {} to a copy with the same content", target);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        // Written next to the target and moved over it, so a target hard linked by dedup is replaced
+        // rather than rewritten together with every other link to it.
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            copyContent(file, temp, attrs.size());
+            copyAttributes(file, attrs, temp);
+            FileRewriter.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        metrics.record(Metrics.Phase.WRITE, start);
+        if (store != null) {
+            store.add(file, attrs, target, metrics);
+        }
+        metrics.bytesRead(attrs.size());
+        metrics.bytesWritten(attrs.size());
+        timer.finish("copied", attrs.size());
+        stats.filesCopied.increment();
+        stats.bytesCopied.add(attrs.size());
+        if (verbose) {
+            log.info("Copied {} to {}", file, target);
+        }
+    }
+
+    private boolean isUnchanged(Path file, BasicFileAttributes attrs, Path target) throws IOException {
+        BasicFileAttributes existing;
+        try {
+            existing = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (attrs.isSymbolicLink()) {
+            return existing.isSymbolicLink() && Files.readSymbolicLink(file).equals(Files.readSymbolicLink(target));
+        }
+        if (!existing.isRegularFile() || existing.size() != attrs.size()) {
+            return false;
+        }
+        if (options.isChecksum()) {
+            return Files.mismatch(file, target) == -1;
+        }
+        // Compared in milliseconds since not every file system keeps finer timestamps.
+        return existing.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+    }
+
+    private void deleteExtraneous(Path sourceDir, Path targetDir, Stats stats) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(targetDir)) {
+            for (Path entry : entries) {
+                if (Files.exists(sourceDir.resolve(entry.getFileName().toString()), LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                deleteTree(entry);
+                stats.entriesDeleted.increment();
+                if (verbose) {
+                    log.info("Deleted {}", entry);
+                }
+            }
+        }
+    }
+
+    static void deleteTree(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static void copyContent(Path file, Path target, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    static void copyAttributes(Path source, BasicFileAttributes attrs, Path target) throws IOException {
+        try {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source, LinkOption.NOFOLLOW_LINKS));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, only the timestamps are copied.
+        }
+        Files.getFileAttributeView(target, BasicFileAttributeView.class)
+                .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+}
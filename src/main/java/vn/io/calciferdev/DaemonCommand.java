@@ -0,0 +1,182 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Keeps a warm JVM listening on a Unix domain socket and runs the commands sent by
+ * {@link CalciferClient}. Requests run one at a time, since standard output and error are redirected
+ * to the requesting client while its command runs.
+ */
+@Slf4j
+@Data
+@Command(name = "daemon", description = "Serve commands from calcifer clients over a Unix domain socket")
+public class DaemonCommand implements Callable<Integer> {
+
+    @Option(names = {"--socket"}, description = "Socket path, in a folder only this user can access (default: $CALCIFER_SOCKET, "
+            + "or calcifer.sock in $XDG_RUNTIME_DIR or in calcifer-<user> in the temporary directory)")
+    private Path socket;
+
+    @Option(names = {"--idle-timeout"}, description = "Exit after this many seconds without requests (default: never)")
+    private long idleTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final AtomicLong lastRequest = new AtomicLong(System.nanoTime());
+
+    @Override
+    public Integer call() {
+        Path path = (socket != null ? socket : DaemonProtocol.socketPath()).toAbsolutePath();
+        try {
+            DaemonProtocol.createPrivateDirectory(path.getParent());
+            if (isListening(path)) {
+                log.error("A daemon is already listening on {}", path);
+                return 1;
+            }
+            Files.deleteIfExists(path);
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(path));
+                restrictToOwner(path);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteSocket(path)));
+                if (idleTimeout > 0) {
+                    Thread.ofVirtual().name("daemon-idle").start(() -> closeWhenIdle(server));
+                }
+                log.info("Daemon listening on {}", path);
+                serve(server);
+            } finally {
+                deleteSocket(path);
+            }
+            return 0;
+        } catch (IOException e) {
+            log.error("Error running daemon: {}", e.getMessage());
+            return 1;
+        }
+    }
+
+    private static boolean isListening(Path path) {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void restrictToOwner(Path path) throws IOException {
+        // The folder already keeps others out; this also covers a folder later opened up.
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, access is governed by the directory instead.
+        }
+    }
+
+    private static void deleteSocket(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Best effort, a stale socket is replaced by the next daemon.
+        }
+    }
+
+    private void serve(ServerSocketChannel server) throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (AsynchronousCloseException e) {
+                log.info("Daemon idle for {} seconds, exiting", idleTimeout);
+                return;
+            }
+            Thread.ofVirtual().name("daemon-client").start(() -> handle(client));
+        }
+    }
+
+    private void closeWhenIdle(ServerSocketChannel server) {
+        try {
+            while (true) {
+                long idle = System.nanoTime() - lastRequest.get();
+                long remaining = TimeUnit.SECONDS.toNanos(idleTimeout) - idle;
+                if (remaining <= 0 && !lock.isLocked()) {
+                    server.close();
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.max(remaining, TimeUnit.SECONDS.toNanos(1)));
+            }
+        } catch (InterruptedException | IOException e) {
+            // The daemon keeps running without an idle timeout.
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            DaemonProtocol.Request request = DaemonProtocol.readRequest(in);
+            int exitCode;
+            lock.lock();
+            try {
+                exitCode = execute(request, out);
+            } finally {
+                lastRequest.set(System.nanoTime());
+                lock.unlock();
+            }
+            DaemonProtocol.writeExit(out, exitCode);
+        } catch (IOException e) {
+            log.warn("Error serving client: {}", e.getMessage());
+        }
+    }
+
+    private int execute(DaemonProtocol.Request request, DataOutputStream connection) {
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream out = new PrintStream(new DaemonProtocol.FrameOutputStream(connection, DaemonProtocol.STDOUT), true, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(new DaemonProtocol.FrameOutputStream(connection, DaemonProtocol.STDERR), true, StandardCharsets.UTF_8);
+        System.setOut(out);
+        System.setErr(err);
+        Invocation.set(request.workingDirectory(), request.environment());
+        try {
+            String unsupported = DaemonProtocol.unsupported(request.args());
+            if (unsupported != null) {
+                err.println("calcifer: " + unsupported);
+                return 2;
+            }
+            return Calcifer.commandLine()
+                    .setOut(new PrintWriter(out, true))
+                    .setErr(new PrintWriter(err, true))
+                    .execute(request.args());
+        } finally {
+            out.flush();
+            err.flush();
+            Invocation.clear();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+    }
+}
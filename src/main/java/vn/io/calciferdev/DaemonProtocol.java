@@ -0,0 +1,207 @@
+package vn.io.calciferdev;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wire format between {@link CalciferClient} and {@link DaemonCommand}. Only uses {@code java.base} so
+ * the client stays cheap to start.
+ *
+ * <pre>
+ * request:  int magic, string cwd, int argc, string[argc] args, int envc, (string key, string value)[envc]
+ * response: frames of byte type, then int length and bytes for output or int code for {@link #EXIT}
+ * </pre>
+ *
+ * Strings are an int byte length followed by UTF-8 bytes.
+ */
+public class DaemonProtocol {
+
+    public static final int MAGIC = 0x43464431;
+    public static final byte STDOUT = 1;
+    public static final byte STDERR = 2;
+    public static final byte EXIT = 3;
+
+    public record Request(Path workingDirectory, String[] args, Map<String, String> environment) {
+    }
+
+    private DaemonProtocol() {
+    }
+
+    /**
+     * The socket from {@code CALCIFER_SOCKET}, or {@code calcifer.sock} in {@code XDG_RUNTIME_DIR}, or in a
+     * per-user folder {@code calcifer-<user>} of the temporary directory.
+     */
+    public static Path socketPath() {
+        String configured = System.getenv("CALCIFER_SOCKET");
+        if (configured != null && !configured.isBlank()) {
+            return Path.of(configured);
+        }
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDir != null && !runtimeDir.isBlank()) {
+            return Path.of(runtimeDir, "calcifer.sock");
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"), "calcifer-" + System.getProperty("user.name"), "calcifer.sock");
+    }
+
+    /**
+     * Why a command cannot be sent to the daemon, or null when it can. The daemon runs one request at a
+     * time, so a command that does not finish would keep every other client waiting.
+     */
+    public static String unsupported(String[] args) {
+        if (args.length > 0 && args[0].equals("daemon")) {
+            return "a daemon cannot be started through the client";
+        }
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                return "apply --watch does not finish and would block the daemon for all other clients";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the folder of a socket so that only its owner can reach it, or checks that an existing one
+     * is closed to others. Anyone who can connect can run commands as the daemon's user, so the socket
+     * must never be reachable through a shared folder, not even before its own permissions are set.
+     */
+    public static void createPrivateDirectory(Path dir) throws IOException {
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (FileAlreadyExistsException e) {
+            // Checked below.
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(dir);
+        }
+        if (!isPrivate(dir)) {
+            throw new IOException(dir + " is not a folder that only " + System.getProperty("user.name") + " can access");
+        }
+    }
+
+    /**
+     * Whether a socket belongs to this user and lies in a folder only this user can reach, so it was not
+     * put there by someone else to collect the requests sent to it.
+     */
+    public static boolean isTrusted(Path socket) {
+        try {
+            Path dir = socket.toAbsolutePath().getParent();
+            return dir != null && isPrivate(dir) && currentUser().equals(Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isPrivate(Path dir) throws IOException {
+        try {
+            PosixFileAttributes attrs = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Set<PosixFilePermission> permissions = attrs.permissions();
+            return attrs.isDirectory() && attrs.owner().equals(currentUser())
+                    && !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.GROUP_EXECUTE)
+                    && !permissions.contains(PosixFilePermission.OTHERS_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_EXECUTE);
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, only the owner can be checked.
+            return Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)
+                    && currentUser().equals(Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS));
+        }
+    }
+
+    private static UserPrincipal currentUser() throws IOException {
+        return FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    public static void writeRequest(DataOutputStream out, Request request) throws IOException {
+        out.writeInt(MAGIC);
+        writeString(out, request.workingDirectory().toString());
+        out.writeInt(request.args().length);
+        for (String arg : request.args()) {
+            writeString(out, arg);
+        }
+        out.writeInt(request.environment().size());
+        for (Map.Entry<String, String> entry : request.environment().entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        out.flush();
+    }
+
+    public static Request readRequest(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a calcifer client");
+        }
+        Path workingDirectory = Path.of(readString(in));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(in);
+        }
+        int count = in.readInt();
+        Map<String, String> environment = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            environment.put(readString(in), readString(in));
+        }
+        return new Request(workingDirectory, args, environment);
+    }
+
+    public static void writeExit(DataOutputStream out, int exitCode) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(exitCode);
+            out.flush();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends everything written to it as output frames of one type. Output and error streams share the
+     * connection, so frames are written under its lock.
+     */
+    public static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        public FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+                out.flush();
+            }
+        }
+    }
+}
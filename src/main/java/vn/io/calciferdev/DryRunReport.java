@@ -0,0 +1,247 @@
+package vn.io.calciferdev;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * What a {@code --dry-run} would have changed. Every file that would be rewritten is printed as a
+ * unified diff, cut off after a number of changed lines, as soon as it has been scanned, so the report of
+ * a large tree starts right away; the order follows the parallel scan. Planned folder renames are
+ * printed the same way and the totals are logged at the end.
+ */
+@Slf4j
+public class DryRunReport {
+
+    private static final int CONTEXT = 3;
+    private static final int MAX_EDITS = 2000;
+
+    private final int diffLines;
+    private final PrintStream out;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder renames = new LongAdder();
+
+    /**
+     * @param diffLines changed lines shown per file, none to only count the changes
+     */
+    public DryRunReport(int diffLines) {
+        this.diffLines = diffLines;
+        this.out = System.out;
+    }
+
+    /**
+     * A file that would be rewritten from {@code before} to {@code after}.
+     */
+    public void changed(Path file, byte[] before, byte[] after) {
+        String[] oldLines = split(before);
+        String[] newLines = split(after);
+        List<Edit> edits = diff(oldLines, newLines);
+        long changedLines = edits.stream().filter(edit -> edit.type() != ' ').count();
+        files.increment();
+        lines.add(changedLines);
+        bytes.add(after.length);
+        if (diffLines > 0) {
+            print(format(file, edits, oldLines, newLines));
+        }
+    }
+
+    /**
+     * A file too large to diff that would be rewritten with {@code size} bytes.
+     */
+    public void changed(Path file, long size) {
+        files.increment();
+        bytes.add(size);
+        if (diffLines > 0) {
+            print("--- " + file + System.lineSeparator() + "+++ " + file + System.lineSeparator()
+                    + "@@ too large to preview, " + size + " bytes would be written @@" + System.lineSeparator());
+        }
+    }
+
+    public void renamed(Path from, Path to) {
+        renames.increment();
+        print("rename " + from + System.lineSeparator() + "    to " + to + System.lineSeparator());
+    }
+
+    public void logSummary() {
+        log.info("Dry run: {} files would change ({} lines), {} folders would be renamed, {} bytes would be written",
+                files.sum(), lines.sum(), renames.sum(), bytes.sum());
+    }
+
+    private synchronized void print(String text) {
+        out.print(text);
+        out.flush();
+    }
+
+    private String format(Path file, List<Edit> edits, String[] oldLines, String[] newLines) {
+        StringBuilder diff = new StringBuilder();
+        String newline = System.lineSeparator();
+        diff.append("--- ").append(file).append(newline).append("+++ ").append(file).append(newline);
+        int shown = 0;
+        int i = 0;
+        while (i < edits.size()) {
+            while (i < edits.size() && edits.get(i).type() == ' ') {
+                i++;
+            }
+            if (i == edits.size()) {
+                break;
+            }
+            int start = Math.max(0, i - CONTEXT);
+            int end = i;
+            int lastChange = i;
+            while (end < edits.size() && end - lastChange <= 2 * CONTEXT) {
+                if (edits.get(end).type() != ' ') {
+                    lastChange = end;
+                }
+                end++;
+            }
+            end = Math.min(edits.size(), lastChange + CONTEXT + 1);
+            Edit first = edits.get(start);
+            long oldCount = edits.subList(start, end).stream().filter(edit -> edit.type() != '+').count();
+            long newCount = edits.subList(start, end).stream().filter(edit -> edit.type() != '-').count();
+            diff.append("@@ -").append(first.oldLine() + 1).append(',').append(oldCount)
+                    .append(" +").append(first.newLine() + 1).append(',').append(newCount).append(" @@").append(newline);
+            for (int k = start; k < end; k++) {
+                Edit edit = edits.get(k);
+                if (edit.type() != ' ' && ++shown > diffLines) {
+                    long remaining = edits.subList(k, edits.size()).stream().filter(e -> e.type() != ' ').count();
+                    diff.append("... ").append(remaining).append(" more changed lines").append(newline);
+                    return diff.toString();
+                }
+                String line = edit.type() == '+' ? newLines[edit.newLine()] : oldLines[edit.oldLine()];
+                diff.append(edit.type()).append(line).append(newline);
+            }
+            i = end;
+        }
+        return diff.toString();
+    }
+
+    private static String[] split(byte[] content) {
+        String text = new String(content, StandardCharsets.UTF_8);
+        if (text.isEmpty()) {
+            return new String[0];
+        }
+        String[] lines = text.split("\r?\n", -1);
+        // A final line break ends the last line rather than starting an empty one.
+        return lines[lines.length - 1].isEmpty() ? Arrays.copyOf(lines, lines.length - 1) : lines;
+    }
+
+    /**
+     * One line of the edit script: kept ({@code ' '}), removed ({@code '-'}) or added ({@code '+'}), with
+     * the index it has in the old and the new text at that point.
+     */
+    private record Edit(char type, int oldLine, int newLine) {
+    }
+
+    /**
+     * Myers' shortest edit script. Replacements change few lines, so the number of edits {@code d} is
+     * small, and only the {@code 2d + 1} diagonals reached in each round are kept. Beyond
+     * {@link #MAX_EDITS} the whole text is shown as removed and added instead.
+     */
+    static List<Edit> diff(String[] a, String[] b) {
+        int n = a.length;
+        int m = b.length;
+        if (Math.abs(n - m) > MAX_EDITS) {
+            return replaceAll(n, m);
+        }
+        List<int[]> trace = new ArrayList<>();
+        int[] v = new int[] {0, 0, 0};
+        int offset = 1;
+        int found = -1;
+        for (int d = 0; d <= n + m; d++) {
+            int[] next = new int[2 * d + 3];
+            int nextOffset = d + 1;
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || k != d && get(v, offset, k - 1) < get(v, offset, k + 1)) {
+                    x = get(v, offset, k + 1);
+                } else {
+                    x = get(v, offset, k - 1) + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[x].equals(b[y])) {
+                    x++;
+                    y++;
+                }
+                next[nextOffset + k] = x;
+                if (x >= n && y >= m) {
+                    found = d;
+                    break;
+                }
+            }
+            trace.add(next);
+            v = next;
+            offset = nextOffset;
+            if (found >= 0) {
+                break;
+            }
+            if (d == MAX_EDITS) {
+                return replaceAll(n, m);
+            }
+        }
+        List<Edit> edits = new ArrayList<>();
+        int x = n;
+        int y = m;
+        for (int d = found; d >= 0; d--) {
+            int k = x - y;
+            int prevK;
+            int prevX;
+            if (d == 0) {
+                prevK = 0;
+                prevX = 0;
+            } else {
+                int[] prev = trace.get(d - 1);
+                int prevOffset = d;
+                if (k == -d || k != d && get(prev, prevOffset, k - 1) < get(prev, prevOffset, k + 1)) {
+                    prevK = k + 1;
+                } else {
+                    prevK = k - 1;
+                }
+                prevX = get(prev, prevOffset, prevK);
+            }
+            int prevY = prevX - prevK;
+            int startX = d == 0 ? 0 : prevK == k + 1 ? prevX : prevX + 1;
+            int startY = d == 0 ? 0 : prevK == k + 1 ? prevY + 1 : prevY;
+            while (x > startX && y > startY) {
+                x--;
+                y--;
+                edits.add(new Edit(' ', x, y));
+            }
+            if (d > 0) {
+                if (prevK == k + 1) {
+                    y--;
+                    edits.add(new Edit('+', x, y));
+                } else {
+                    x--;
+                    edits.add(new Edit('-', x, y));
+                }
+            }
+        }
+        Collections.reverse(edits);
+        return edits;
+    }
+
+    private static List<Edit> replaceAll(int n, int m) {
+        List<Edit> edits = new ArrayList<>(n + m);
+        for (int i = 0; i < n; i++) {
+            edits.add(new Edit('-', i, 0));
+        }
+        for (int j = 0; j < m; j++) {
+            edits.add(new Edit('+', n, j));
+        }
+        return edits;
+    }
+
+    private static int get(int[] v, int offset, int k) {
+        int index = offset + k;
+        return index >= 0 && index < v.length ? v[index] : 0;
+    }
+}
@@ -0,0 +1,455 @@
+package vn.io.calciferdev;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Rewrites files through a {@link ContentReplacer} with memory use independent of the file size. Files
+ * up to {@link #READ_THRESHOLD} are read into a reused per-thread buffer, larger ones are memory-mapped
+ * one window at a time. A file is only opened for writing once a match was found; the new content goes
+ * to a temporary file next to it which then atomically replaces the original. Binary files are detected
+ * from their first bytes and left alone.
+ *
+ * <p>A rewriter can also run a chain of replacers, each seeing the output of the one before, with the
+ * same result as rewriting the file once per replacer. Intermediate results stay in memory, or for
+ * files larger than one window go to temporary files, and the original is replaced once at the end.
+ *
+ * <p>In a dry run nothing is written: the new content of each changed file is handed to a
+ * {@link DryRunReport} instead.
+ */
+public class FileRewriter {
+
+    public static final int READ_THRESHOLD = 1024 * 1024;
+    public static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    public static final int BINARY_SAMPLE = 8192;
+
+    public enum Result {
+        UNCHANGED, MODIFIED, BINARY
+    }
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    private final ContentReplacer replacer;
+    private final List<ContentReplacer> chain;
+    private final Metrics metrics;
+    private final ReplaceJournal journal;
+    private final DryRunReport dryRun;
+
+    public FileRewriter(ContentReplacer replacer) {
+        this(List.of(replacer), new Metrics(), null, null);
+    }
+
+    /**
+     * With a journal, new contents are only staged in it and the originals stay untouched until the
+     * journal is committed. With a dry run report, changes are only reported and the journal is unused.
+     */
+    public FileRewriter(List<ContentReplacer> chain, Metrics metrics, ReplaceJournal journal, DryRunReport dryRun) {
+        this.replacer = chain.get(0);
+        this.chain = List.copyOf(chain);
+        this.metrics = metrics;
+        this.journal = dryRun == null ? journal : null;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Carries the content hash of a file between the rewriter and the file state index. When the hash
+     * of the content equals {@code expected} the file is known not to match and is not scanned again.
+     * After a full scan without a match {@link #value()} holds the hash of the content.
+     */
+    public static class ContentHash {
+        private final Long expected;
+        private Long value;
+
+        public ContentHash(Long expected) {
+            this.expected = expected;
+        }
+
+        public Long value() {
+            return value;
+        }
+    }
+
+    private interface Body {
+        void write(ContentReplacer.Output out) throws IOException;
+    }
+
+    public Result rewrite(Path file) throws IOException {
+        return rewrite(file, null);
+    }
+
+    public Result rewrite(Path file, ContentHash hash) throws IOException {
+        if (chain.size() > 1) {
+            return rewriteChain(file);
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size == 0) {
+                return Result.UNCHANGED;
+            }
+            // Binary files are told from their first bytes, before anything else is read or hashed.
+            if (size > BINARY_SAMPLE && isBinary(load(in, 0, BINARY_SAMPLE), false)) {
+                return Result.BINARY;
+            }
+            if (size <= WINDOW_SIZE) {
+                ByteBuffer content = load(in, 0, (int) size);
+                Checksum checksum = hash == null ? null : new Checksum();
+                if (checksum != null) {
+                    checksum.update(content, 0, content.limit());
+                    if (hash.expected != null && hash.expected == checksum.value()) {
+                        hash.value = checksum.value();
+                        return Result.UNCHANGED;
+                    }
+                }
+                if (size <= BINARY_SAMPLE && isBinary(content, true)) {
+                    return Result.BINARY;
+                }
+                if (!find(replacer, content, true)) {
+                    if (checksum != null) {
+                        hash.value = checksum.value();
+                    }
+                    return Result.UNCHANGED;
+                }
+                return writeReplaced(file, out -> replacer.replace(content, content.limit(), true, out));
+            }
+            Checksum checksum = hash == null ? null : new Checksum();
+            if (!containsMatch(replacer, in, size, checksum)) {
+                if (checksum != null) {
+                    hash.value = checksum.value();
+                }
+                return Result.UNCHANGED;
+            }
+            return writeReplaced(file, out -> replaceWindows(replacer, in, size, out));
+        }
+    }
+
+    /**
+     * Runs every replacer of the chain in turn. A file that is binary to begin with is reported as
+     * such; once an intermediate result is empty or binary the remaining replacers would skip it, so
+     * the chain stops there.
+     */
+    private Result rewriteChain(Path file) throws IOException {
+        ByteBuffer content = null;
+        Path source = file;
+        boolean first = true;
+        boolean changed = false;
+        List<Path> temps = new ArrayList<>();
+        try {
+            for (ContentReplacer stage : chain) {
+                if (content == null) {
+                    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                        long size = in.size();
+                        if (size == 0) {
+                            break;
+                        }
+                        if (size > BINARY_SAMPLE && isBinary(load(in, 0, BINARY_SAMPLE), false)) {
+                            if (first) {
+                                return Result.BINARY;
+                            }
+                            break;
+                        }
+                        if (size <= WINDOW_SIZE) {
+                            content = load(in, 0, (int) size);
+                        } else {
+                            first = false;
+                            if (!containsMatch(stage, in, size, null)) {
+                                continue;
+                            }
+                            // A dry run must not leave anything in the tree, even when interrupted.
+                            Path temp = dryRun != null ? Files.createTempFile("calcifer-dry-run", ".tmp")
+                                    : Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+                            temps.add(temp);
+                            ContentReplacer.Output out;
+                            long start = System.nanoTime();
+                            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                                out = new ContentReplacer.Output(channel);
+                                replaceWindows(stage, in, size, out);
+                                if (dryRun == null) {
+                                    metrics.bytesWritten(channel.size());
+                                }
+                            }
+                            metrics.record(Metrics.Phase.WRITE, start);
+                            if (out.isChanged()) {
+                                source = temp;
+                                changed = true;
+                            }
+                            continue;
+                        }
+                    }
+                }
+                if (content.limit() == 0) {
+                    break;
+                }
+                if (isBinary(content, true)) {
+                    if (first) {
+                        return Result.BINARY;
+                    }
+                    break;
+                }
+                first = false;
+                if (find(stage, content, true)) {
+                    long start = System.nanoTime();
+                    byte[] replaced = stage.replace(content);
+                    metrics.record(Metrics.Phase.MATCH, start);
+                    if (replaced != null) {
+                        content = ByteBuffer.wrap(replaced);
+                        changed = true;
+                    }
+                }
+            }
+            if (!changed) {
+                return Result.UNCHANGED;
+            }
+            if (content != null) {
+                ByteBuffer result = content;
+                return writeReplaced(file, out -> {
+                    out.write(result, 0, result.limit());
+                    out.markChanged();
+                });
+            }
+            if (dryRun != null) {
+                dryRun.changed(file, Files.size(source));
+                return Result.MODIFIED;
+            }
+            copyPermissions(file, source);
+            if (journal != null) {
+                moveAtomically(source, journal.prepare(file));
+                journal.staged(file);
+            } else {
+                moveAtomically(source, file);
+            }
+            return Result.MODIFIED;
+        } finally {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static class Checksum {
+        private final CRC32C crc32c = new CRC32C();
+        private final CRC32 crc32 = new CRC32();
+
+        void update(ByteBuffer content, int from, int to) {
+            crc32c.update(content.duplicate().limit(to).position(from));
+            crc32.update(content.duplicate().limit(to).position(from));
+        }
+
+        long value() {
+            return crc32c.getValue() << 32 | crc32.getValue();
+        }
+    }
+
+    /**
+     * Treats content as binary when its first bytes contain a NUL byte or are not valid UTF-8. A
+     * sequence cut off at the end of the sample is fine unless the sample is the whole file.
+     */
+    static boolean isBinary(ByteBuffer content, boolean complete) {
+        int end = Math.min(content.limit(), BINARY_SAMPLE);
+        complete = complete && end == content.limit();
+        int i = 0;
+        while (i < end) {
+            int b = content.get(i) & 0xff;
+            if (b == 0) {
+                return true;
+            }
+            int length = b < 0x80 ? 1 : b >= 0xc2 && b < 0xe0 ? 2 : b >= 0xe0 && b < 0xf0 ? 3 : b >= 0xf0 && b < 0xf5 ? 4 : 0;
+            if (length == 0) {
+                return true;
+            }
+            for (int k = 1; k < length; k++) {
+                if (i + k >= end) {
+                    return complete;
+                }
+                if ((content.get(i + k) & 0xc0) != 0x80) {
+                    return true;
+                }
+            }
+            i += length;
+        }
+        return false;
+    }
+
+    private boolean find(ContentReplacer replacer, ByteBuffer window, boolean last) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return replacer.find(window, last);
+        } finally {
+            metrics.record(Metrics.Phase.MATCH, start);
+        }
+    }
+
+    /**
+     * Reads or maps part of a file. Mapped windows are only paged in when they are scanned, so for large
+     * files most of the read time shows up in the match phase.
+     */
+    private ByteBuffer load(FileChannel in, long position, int length) throws IOException {
+        long start = System.nanoTime();
+        metrics.bytesRead(length);
+        if (length > READ_THRESHOLD) {
+            ByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            metrics.record(Metrics.Phase.READ, start);
+            return mapped;
+        }
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.min(READ_THRESHOLD, Integer.highestOneBit(length - 1) << 1));
+            BUFFER.set(buffer);
+        }
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        metrics.record(Metrics.Phase.READ, start);
+        return buffer.flip();
+    }
+
+    private boolean containsMatch(ContentReplacer replacer, FileChannel in, long size, Checksum checksum) throws IOException {
+        int overlap = replacer.overlap();
+        for (long position = 0; position < size; position += WINDOW_SIZE) {
+            long end = Math.min(size, position + WINDOW_SIZE + overlap);
+            ByteBuffer window = load(in, position, (int) (end - position));
+            if (find(replacer, window, end == size)) {
+                return true;
+            }
+            if (checksum != null) {
+                checksum.update(window, 0, (int) Math.min(WINDOW_SIZE, end - position));
+            }
+            if (end == size) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void replaceWindows(ContentReplacer replacer, FileChannel in, long size, ContentReplacer.Output out) throws IOException {
+        int overlap = replacer.overlap();
+        long position = 0;
+        while (true) {
+            // Already consumed bytes before the position are passed along as look-behind context.
+            long contextStart = Math.max(0, position - overlap);
+            long end = Math.min(size, position + WINDOW_SIZE + overlap);
+            boolean last = end == size;
+            ByteBuffer window = load(in, contextStart, (int) (end - contextStart));
+            window.position((int) (position - contextStart));
+            int commitLimit = last ? window.limit() : (int) (position + WINDOW_SIZE - contextStart);
+            int consumed = replacer.replace(window, commitLimit, last, out);
+            if (last) {
+                return;
+            }
+            position = contextStart + consumed;
+        }
+    }
+
+    private Result writeReplaced(Path file, Body body) throws IOException {
+        if (dryRun != null) {
+            return previewReplaced(file, body);
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = journal != null ? journal.prepare(file) : Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        boolean staged = false;
+        long start = System.nanoTime();
+        try {
+            ContentReplacer.Output out;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                out = new ContentReplacer.Output(channel);
+                body.write(out);
+                metrics.bytesWritten(channel.size());
+            }
+            if (!out.isChanged()) {
+                return Result.UNCHANGED;
+            }
+            copyPermissions(file, temp);
+            if (journal != null) {
+                journal.staged(file);
+                staged = true;
+            } else {
+                moveAtomically(temp, file);
+            }
+            return Result.MODIFIED;
+        } finally {
+            if (!staged) {
+                Files.deleteIfExists(temp);
+            }
+            metrics.record(Metrics.Phase.WRITE, start);
+        }
+    }
+
+    /**
+     * Reports the new content of a file instead of writing it. Content up to one window is kept in
+     * memory and diffed against the original; for larger files only the size is counted.
+     */
+    private Result previewReplaced(Path file, Body body) throws IOException {
+        long size = Files.size(file);
+        if (size <= WINDOW_SIZE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) size + 64);
+            ContentReplacer.Output out = new ContentReplacer.Output(Channels.newChannel(bytes));
+            body.write(out);
+            if (!out.isChanged()) {
+                return Result.UNCHANGED;
+            }
+            dryRun.changed(file, Files.readAllBytes(file), bytes.toByteArray());
+            return Result.MODIFIED;
+        }
+        CountingChannel counter = new CountingChannel();
+        ContentReplacer.Output out = new ContentReplacer.Output(counter);
+        body.write(out);
+        if (!out.isChanged()) {
+            return Result.UNCHANGED;
+        }
+        dryRun.changed(file, counter.count);
+        return Result.MODIFIED;
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        long count;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            count += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static void copyPermissions(Path from, Path to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, the temporary file keeps its default permissions.
+        }
+    }
+
+    static void moveAtomically(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers files that did not match a given rule set, keyed by path, together with their size,
+ * modification time and content hash. The file is a sorted array of fixed-size records that is
+ * memory-mapped and binary searched, so opening even a large index reads nothing up front.
+ * <p>
+ * The index holds one rule set, whose fingerprint is in the header; opening it with other rules starts
+ * an empty one. Saving keeps only the files looked up in this run, so deleted files do not stay behind.
+ *
+ * <pre>
+ * header: int magic, int version, long count, long fingerprint
+ * record: long key, long size, long modified (ns), long contentHash
+ * </pre>
+ */
+public class FileStateIndex {
+
+    private static final int MAGIC = 0x43464958;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 32;
+    private static final long RACY_WINDOW_NANOS = 2_000_000_000L;
+    private static final long[] REMOVED = new long[0];
+
+    public record Entry(long size, long modified, long contentHash) {
+    }
+
+    private final Path file;
+    private final long fingerprint;
+    private final MappedByteBuffer records;
+    private final long count;
+    private final Map<Long, long[]> updates = new ConcurrentHashMap<>();
+    private final Set<Long> seen = ConcurrentHashMap.newKeySet();
+    private final long openedAt = System.currentTimeMillis() * 1_000_000L;
+
+    private FileStateIndex(Path file, long fingerprint, MappedByteBuffer records, long count) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.records = records;
+        this.count = count;
+    }
+
+    public static FileStateIndex open(Path file, String rules) throws IOException {
+        long fingerprint = hash(rules);
+        if (!Files.exists(file) || Files.size(file) < HEADER_SIZE) {
+            return new FileStateIndex(file, fingerprint, null, 0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long count = mapped.getLong(8);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                    || HEADER_SIZE + count * RECORD_SIZE != channel.size() || mapped.getLong(16) != fingerprint) {
+                return new FileStateIndex(file, fingerprint, null, 0);
+            }
+            return new FileStateIndex(file, fingerprint, mapped, count);
+        }
+    }
+
+    public Entry get(Path path) {
+        if (records == null) {
+            return null;
+        }
+        long key = key(path);
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int offset = (int) (HEADER_SIZE + mid * RECORD_SIZE);
+            int cmp = Long.compare(records.getLong(offset), key);
+            if (cmp == 0) {
+                seen.add(key);
+                return new Entry(records.getLong(offset + 8), records.getLong(offset + 16), records.getLong(offset + 24));
+            } else if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    public void put(Path path, Entry entry) {
+        // A file changed again within the timestamp resolution would look unchanged next time.
+        if (entry.modified() >= openedAt - RACY_WINDOW_NANOS) {
+            remove(path);
+            return;
+        }
+        updates.put(key(path), new long[] {entry.size(), entry.modified(), entry.contentHash()});
+    }
+
+    public void remove(Path path) {
+        updates.put(key(path), REMOVED);
+    }
+
+    /**
+     * Writes the updates, and drops the entries of files that were not looked up since the index was opened.
+     */
+    public void save() throws IOException {
+        if (updates.isEmpty() && seen.size() == count) {
+            return;
+        }
+        List<Long> keys = new ArrayList<>(updates.keySet());
+        keys.sort(Long::compare);
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                channel.position(HEADER_SIZE);
+                long written = 0;
+                long old = 0;
+                int next = 0;
+                while (old < count || next < keys.size()) {
+                    long oldKey = old < count ? records.getLong((int) (HEADER_SIZE + old * RECORD_SIZE)) : Long.MAX_VALUE;
+                    if (next < keys.size() && (old >= count || keys.get(next) <= oldKey)) {
+                        long key = keys.get(next++);
+                        if (key == oldKey) {
+                            old++;
+                        }
+                        long[] values = updates.get(key);
+                        if (values == REMOVED) {
+                            continue;
+                        }
+                        buffer.putLong(key).putLong(values[0]).putLong(values[1]).putLong(values[2]);
+                    } else {
+                        int offset = (int) (HEADER_SIZE + old * RECORD_SIZE);
+                        old++;
+                        if (!seen.contains(oldKey)) {
+                            continue;
+                        }
+                        buffer.put(records.slice(offset, RECORD_SIZE));
+                    }
+                    written++;
+                    if (!buffer.hasRemaining()) {
+                        flush(channel, buffer);
+                    }
+                }
+                flush(channel, buffer);
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(written).putLong(fingerprint);
+                buffer.flip();
+                channel.write(buffer, 0);
+            }
+            FileRewriter.moveAtomically(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private long key(Path path) {
+        return hash(path.toAbsolutePath().normalize().toString());
+    }
+
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,160 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code .gitignore} rules that apply inside one directory: the rules of its own file plus those
+ * inherited from its parents. Later and deeper rules take precedence, as in git.
+ */
+public class GitIgnore {
+
+    public static final GitIgnore EMPTY = new GitIgnore(null, null, List.of());
+
+    private record Rule(Pattern pattern, boolean negate, boolean dirOnly, boolean anchored) {
+    }
+
+    private final GitIgnore parent;
+    private final Path base;
+    private final List<Rule> rules;
+
+    private GitIgnore(GitIgnore parent, Path base, List<Rule> rules) {
+        this.parent = parent;
+        this.base = base;
+        this.rules = rules;
+    }
+
+    /**
+     * Collects the rules of the enclosing repository for a walk that starts below its top level.
+     */
+    public static GitIgnore forRoot(Path root) throws IOException {
+        if (Files.exists(root.resolve(".git"))) {
+            return EMPTY;
+        }
+        Deque<Path> dirs = new ArrayDeque<>();
+        Path dir = root.toAbsolutePath().normalize().getParent();
+        while (dir != null) {
+            dirs.push(dir);
+            if (Files.exists(dir.resolve(".git"))) {
+                break;
+            }
+            dir = dir.getParent();
+        }
+        if (dir == null) {
+            return EMPTY;
+        }
+        GitIgnore rules = EMPTY;
+        for (Path parentDir : dirs) {
+            rules = rules.enter(parentDir);
+        }
+        return rules;
+    }
+
+    public GitIgnore enter(Path dir) throws IOException {
+        Path file = dir.resolve(".gitignore");
+        if (!Files.isRegularFile(file)) {
+            return this;
+        }
+        List<Rule> parsed = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            Rule rule = parse(line);
+            if (rule != null) {
+                parsed.add(rule);
+            }
+        }
+        return parsed.isEmpty() ? this : new GitIgnore(this, dir.toAbsolutePath().normalize(), parsed);
+    }
+
+    public boolean isIgnored(Path path, boolean directory) {
+        Boolean ignored = match(path.toAbsolutePath().normalize(), directory);
+        return ignored != null && ignored;
+    }
+
+    private Boolean match(Path path, boolean directory) {
+        Boolean result = parent == null ? null : parent.match(path, directory);
+        if (rules.isEmpty() || !path.startsWith(base)) {
+            return result;
+        }
+        String relative = base.relativize(path).toString().replace('\\', '/');
+        String name = path.getFileName().toString();
+        for (Rule rule : rules) {
+            if (rule.dirOnly() && !directory) {
+                continue;
+            }
+            if (rule.pattern().matcher(rule.anchored() ? relative : name).matches()) {
+                result = !rule.negate();
+            }
+        }
+        return result;
+    }
+
+    private static Rule parse(String line) {
+        String text = line.stripTrailing();
+        if (text.isEmpty() || text.startsWith("#")) {
+            return null;
+        }
+        boolean negate = text.startsWith("!");
+        if (negate) {
+            text = text.substring(1);
+        }
+        if (text.startsWith("\\")) {
+            text = text.substring(1);
+        }
+        boolean dirOnly = text.endsWith("/");
+        if (dirOnly) {
+            text = text.substring(0, text.length() - 1);
+        }
+        boolean anchored = text.contains("/");
+        if (text.startsWith("/")) {
+            text = text.substring(1);
+        }
+        if (text.isEmpty()) {
+            return null;
+        }
+        return new Rule(Pattern.compile(toRegex(text)), negate, dirOnly, anchored);
+    }
+
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (c == '/' && glob.startsWith("/**", i) && i + 3 == glob.length()) {
+                regex.append("(?:/.*)?");
+                i += 2;
+            } else if (c == '*' && glob.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[') {
+                int close = glob.indexOf(']', i + 1);
+                if (close < 0) {
+                    regex.append("\\[");
+                } else {
+                    String set = glob.substring(i + 1, close);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                    i = close;
+                }
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
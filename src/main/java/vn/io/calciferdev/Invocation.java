@@ -0,0 +1,65 @@
+package vn.io.calciferdev;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The working directory and environment a command was invoked with. From the command line these are
+ * the process's own; the daemon sets the client's for the duration of each request, so relative paths
+ * and child processes behave as if the command had been started by the client.
+ */
+public class Invocation {
+
+    private static volatile Path workingDirectory;
+    private static volatile Map<String, String> environment;
+
+    private Invocation() {
+    }
+
+    static void set(Path workingDirectory, Map<String, String> environment) {
+        Invocation.workingDirectory = workingDirectory;
+        Invocation.environment = environment;
+    }
+
+    static void clear() {
+        set(null, null);
+    }
+
+    public static Path resolve(String path) {
+        return resolve(Path.of(path));
+    }
+
+    public static Path resolve(Path path) {
+        Path dir = workingDirectory;
+        return dir == null || path.isAbsolute() ? path : dir.resolve(path);
+    }
+
+    public static File resolve(File file) {
+        return file == null ? null : resolve(file.toPath()).toFile();
+    }
+
+    /**
+     * Returns a variable of the invoking environment.
+     */
+    public static String getenv(String name) {
+        Map<String, String> env = environment;
+        return env != null ? env.get(name) : System.getenv(name);
+    }
+
+    /**
+     * Starts child processes in the invoking working directory, unless the builder already has one, and
+     * with the invoking environment.
+     */
+    public static void configure(ProcessBuilder processBuilder) {
+        Path dir = workingDirectory;
+        Map<String, String> env = environment;
+        if (dir != null && processBuilder.directory() == null) {
+            processBuilder.directory(dir.toFile());
+        }
+        if (env != null) {
+            processBuilder.environment().clear();
+            processBuilder.environment().putAll(env);
+        }
+    }
+}
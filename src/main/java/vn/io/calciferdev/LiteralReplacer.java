@@ -0,0 +1,89 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Replaces a single literal byte sequence using a Boyer-Moore-Horspool search, so files are scanned
+ * without decoding them.
+ */
+public class LiteralReplacer implements ContentReplacer {
+
+    private final String targetText;
+    private final String replacementText;
+    private final byte[] target;
+    private final byte[] replacement;
+    private final boolean identity;
+    private final int[] shift = new int[256];
+
+    public LiteralReplacer(String target, String replacement) {
+        if (target.isEmpty()) {
+            throw new IllegalArgumentException("Literal pattern must not be empty");
+        }
+        this.targetText = target;
+        this.replacementText = replacement;
+        this.target = target.getBytes(StandardCharsets.UTF_8);
+        this.replacement = replacement.getBytes(StandardCharsets.UTF_8);
+        this.identity = Arrays.equals(this.target, this.replacement);
+        Arrays.fill(shift, this.target.length);
+        for (int i = 0; i < this.target.length - 1; i++) {
+            shift[this.target[i] & 0xff] = this.target.length - 1 - i;
+        }
+    }
+
+    int indexOf(ByteBuffer data, int from, int to) {
+        int last = target.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (data.get(i + j) == target[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[data.get(i + last) & 0xff];
+        }
+        return -1;
+    }
+
+    @Override
+    public int overlap() {
+        return target.length - 1;
+    }
+
+    @Override
+    public String fingerprint() {
+        return "literal\0" + targetText + "\0" + replacementText;
+    }
+
+    @Override
+    public boolean find(ByteBuffer window, boolean last) {
+        return !identity && indexOf(window, window.position(), window.limit()) >= 0;
+    }
+
+    @Override
+    public int replace(ByteBuffer window, int commitLimit, boolean last, Output out) throws IOException {
+        int copied = window.position();
+        if (!identity) {
+            int match = indexOf(window, copied, window.limit());
+            while (match >= 0 && match < commitLimit) {
+                out.write(window, copied, match);
+                out.write(replacement);
+                out.markChanged();
+                copied = match + target.length;
+                match = indexOf(window, copied, window.limit());
+            }
+        }
+        int consumed = last ? window.limit() : Math.max(commitLimit, copied);
+        out.write(window, copied, consumed);
+        return consumed;
+    }
+
+    @Override
+    public String replace(String text) {
+        return text.replace(targetText, replacementText);
+    }
+}
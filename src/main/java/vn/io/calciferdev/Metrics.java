@@ -0,0 +1,328 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Instrumentation of one command run: time spent per phase, a latency histogram of the folders, bytes
+ * read and written and files skipped by reason. Recording is cheap enough to stay on; the numbers are
+ * only reported with {@code --stats} or {@code --stats-file}. Folders and slow files are also emitted
+ * as JFR events, which cost nothing unless a flight recording is running.
+ */
+@Slf4j
+public class Metrics {
+
+    public enum Phase {
+        WALK, READ, MATCH, WRITE, SPAWN, WAIT
+    }
+
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] phaseCounts = new LongAdder[Phase.values().length];
+    private final Histogram folderLatency = new Histogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Map<String, LongAdder> skipped = new ConcurrentHashMap<>();
+    private final long startedAt = System.nanoTime();
+
+    public Metrics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Adds the time since {@code startNanos}, taken from {@link System#nanoTime()}, to a phase.
+     */
+    public void record(Phase phase, long startNanos) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+        phaseCounts[phase.ordinal()].increment();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void skipped(String reason) {
+        skipped.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    public FolderTimer startFolder(String command, String folder) {
+        return new FolderTimer(command, folder);
+    }
+
+    public FileTimer startFile(Path path) {
+        return new FileTimer(path);
+    }
+
+    /**
+     * Times one folder for the latency histogram and the {@code calcifer.Folder} event.
+     */
+    public class FolderTimer {
+        private final FolderEvent event = new FolderEvent();
+        private final long start = System.nanoTime();
+
+        private FolderTimer(String command, String folder) {
+            event.command = command;
+            event.folder = folder;
+            event.begin();
+        }
+
+        public void finish(boolean success) {
+            folderLatency.record(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Times one file for the {@code calcifer.File} event.
+     */
+    public static class FileTimer {
+        private final FileEvent event = new FileEvent();
+
+        private FileTimer(Path path) {
+            event.begin();
+            event.path = path;
+        }
+
+        public void finish(String outcome, long size) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = event.path.toString();
+                event.outcome = outcome;
+                event.size = size;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("calcifer.Folder")
+    @Label("Folder")
+    @Category("Calcifer")
+    @Description("One folder processed by a command")
+    static class FolderEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Folder")
+        String folder;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("calcifer.File")
+    @Label("File")
+    @Category("Calcifer")
+    @Description("One file read, rewritten or copied")
+    @Threshold("1 ms")
+    static class FileEvent extends Event {
+        transient Path path;
+        @Label("File")
+        String file;
+        @Label("Outcome")
+        String outcome;
+        @Label("Size")
+        @jdk.jfr.DataAmount
+        long size;
+    }
+
+    @Name("calcifer.Command")
+    @Label("Command")
+    @Category("Calcifer")
+    @Description("Totals of one command run")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Folders")
+        long folders;
+        @Label("Bytes Read")
+        @jdk.jfr.DataAmount
+        long bytesRead;
+        @Label("Bytes Written")
+        @jdk.jfr.DataAmount
+        long bytesWritten;
+    }
+
+    /**
+     * Logs the summary table and writes the JSON report as requested, and emits the command event.
+     */
+    public void report(String command, boolean table, Path jsonFile) {
+        CommandEvent event = new CommandEvent();
+        if (event.isEnabled()) {
+            event.command = command;
+            event.folders = folderLatency.count();
+            event.bytesRead = bytesRead.sum();
+            event.bytesWritten = bytesWritten.sum();
+            event.commit();
+        }
+        if (table) {
+            log.info("Statistics for {}:{}{}", command, System.lineSeparator(), formatTable());
+        }
+        if (jsonFile != null) {
+            try {
+                Path file = Invocation.resolve(jsonFile);
+                Path dir = file.toAbsolutePath().getParent();
+                if (dir != null) {
+                    Files.createDirectories(dir);
+                }
+                Files.writeString(file, toJson(command));
+            } catch (IOException e) {
+                log.error("Error writing statistics to {}: {}", jsonFile, e.getMessage());
+            }
+        }
+    }
+
+    String formatTable() {
+        StringBuilder table = new StringBuilder();
+        table.append(String.format(Locale.ROOT, "%-8s %10s %12s %12s%n", "phase", "count", "total ms", "mean us"));
+        for (Phase phase : Phase.values()) {
+            long count = phaseCounts[phase.ordinal()].sum();
+            if (count == 0) {
+                continue;
+            }
+            long nanos = phaseNanos[phase.ordinal()].sum();
+            table.append(String.format(Locale.ROOT, "%-8s %10d %12.1f %12.1f%n",
+                    phase.name().toLowerCase(Locale.ROOT), count, nanos / 1e6, nanos / 1e3 / count));
+        }
+        table.append(String.format(Locale.ROOT, "folders  %10d   p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                folderLatency.count(), folderLatency.percentile(0.5) / 1e6, folderLatency.percentile(0.9) / 1e6,
+                folderLatency.percentile(0.99) / 1e6, folderLatency.max() / 1e6));
+        table.append(String.format(Locale.ROOT, "bytes    read %d, written %d%n", bytesRead.sum(), bytesWritten.sum()));
+        Map<String, Long> reasons = skippedByReason();
+        if (!reasons.isEmpty()) {
+            table.append("skipped  ");
+            reasons.forEach((reason, count) -> table.append(reason).append(' ').append(count).append(", "));
+            table.setLength(table.length() - 2);
+            table.append(System.lineSeparator());
+        }
+        table.append(String.format(Locale.ROOT, "elapsed  %.1f ms", (System.nanoTime() - startedAt) / 1e6));
+        return table.toString();
+    }
+
+    String toJson(String command) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"command\": \"").append(command).append("\",\n");
+        json.append(String.format(Locale.ROOT, "  \"elapsedMs\": %.3f,%n", (System.nanoTime() - startedAt) / 1e6));
+        json.append("  \"phases\": {");
+        String separator = "";
+        for (Phase phase : Phase.values()) {
+            json.append(separator).append(String.format(Locale.ROOT, "%n    \"%s\": {\"count\": %d, \"totalMs\": %.3f}",
+                    phase.name().toLowerCase(Locale.ROOT), phaseCounts[phase.ordinal()].sum(),
+                    phaseNanos[phase.ordinal()].sum() / 1e6));
+            separator = ",";
+        }
+        json.append("\n  },\n");
+        json.append(String.format(Locale.ROOT,
+                "  \"folders\": {\"count\": %d, \"p50Ms\": %.3f, \"p90Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f},%n",
+                folderLatency.count(), folderLatency.percentile(0.5) / 1e6, folderLatency.percentile(0.9) / 1e6,
+                folderLatency.percentile(0.99) / 1e6, folderLatency.max() / 1e6));
+        json.append("  \"bytesRead\": ").append(bytesRead.sum()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten.sum()).append(",\n");
+        json.append("  \"skipped\": {");
+        separator = "";
+        for (Map.Entry<String, Long> entry : skippedByReason().entrySet()) {
+            json.append(separator).append("\"").append(entry.getKey()).append("\": ").append(entry.getValue());
+            separator = ", ";
+        }
+        json.append("}\n}\n");
+        return json.toString();
+    }
+
+    private Map<String, Long> skippedByReason() {
+        Map<String, Long> reasons = new TreeMap<>();
+        skipped.forEach((reason, count) -> reasons.put(reason, count.sum()));
+        return reasons;
+    }
+
+    /**
+     * Log-linear histogram in the style of HdrHistogram: every power of two is split into 32 linear
+     * buckets, so recorded values keep about two significant digits over the whole {@code long} range
+     * in a fixed 16 KiB array.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            max.accumulate(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Returns the middle of the bucket holding the value at the given quantile.
+         */
+        long percentile(double quantile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min(max.get(), lowerBound(i) + bucketWidth(i) / 2);
+                }
+            }
+            return max.get();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int group = exponent - SUB_BUCKET_BITS + 1;
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return group * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int index) {
+            int group = index / SUB_BUCKETS;
+            int sub = index % SUB_BUCKETS;
+            return group == 0 ? sub : (long) (sub + SUB_BUCKETS) << (group - 1);
+        }
+
+        static long bucketWidth(int index) {
+            int group = index / SUB_BUCKETS;
+            return group == 0 ? 1 : 1L << (group - 1);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public abstract class OutputCapture {
+
+    public enum Mode {
+        DISCARD, BUFFER, FILE
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    protected final String folder;
+
+    protected OutputCapture(String folder) {
+        this.folder = folder;
+    }
+
+    public static OutputCapture create(Mode mode, String folder, Path logDir, int bufferSize) throws IOException {
+        return switch (mode) {
+            case DISCARD -> new Discard(folder);
+            case BUFFER -> new Buffer(folder, bufferSize);
+            case FILE -> new ToFile(folder, logFile(logDir, folder));
+        };
+    }
+
+    public static Mode parseMode(String mode) {
+        return Mode.valueOf(mode.trim().toUpperCase());
+    }
+
+    static Path logFile(Path logDir, String folder) throws IOException {
+        if (logDir == null) {
+            throw new IllegalArgumentException("A log directory is required for file output");
+        }
+        Files.createDirectories(logDir);
+        Path absolute = Path.of(folder).toAbsolutePath().normalize();
+        String name = absolute.getRoot() == null ? absolute.toString()
+                : absolute.getRoot().relativize(absolute).toString();
+        name = name.isEmpty() ? "root" : name.replaceAll("[^A-Za-z0-9._-]", "_");
+        // Replacing characters can map different folders to the same name, as /a/b_c and /a/b/c.
+        return logDir.resolve(name + "-" + shortHash(absolute.toString()) + ".log");
+    }
+
+    private static String shortHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 4);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public abstract void configure(ProcessBuilder processBuilder);
+
+    public abstract void start(Process process);
+
+    public abstract void finish() throws InterruptedException;
+
+    /**
+     * The output captured by a finished run, or null when this mode keeps none.
+     */
+    public abstract byte[] captured() throws IOException;
+
+    /**
+     * Presents the output of an earlier run as if the command had just printed it.
+     */
+    public abstract void replay(byte[] output) throws IOException;
+
+    private static class Discard extends OutputCapture {
+
+        Discard(String folder) {
+            super(folder);
+        }
+
+        @Override
+        public void configure(ProcessBuilder processBuilder) {
+            // The child writes straight to the null device, nothing is read on our side.
+            processBuilder.redirectOutput(Redirect.DISCARD);
+        }
+
+        @Override
+        public void start(Process process) {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public byte[] captured() {
+            return null;
+        }
+
+        @Override
+        public void replay(byte[] output) {
+        }
+    }
+
+    private static class ToFile extends OutputCapture {
+        private final Path file;
+
+        ToFile(String folder, Path file) {
+            super(folder);
+            this.file = file;
+        }
+
+        @Override
+        public void configure(ProcessBuilder processBuilder) {
+            processBuilder.redirectOutput(Redirect.to(file.toFile()));
+        }
+
+        @Override
+        public void start(Process process) {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public byte[] captured() throws IOException {
+            return Files.readAllBytes(file);
+        }
+
+        @Override
+        public void replay(byte[] output) throws IOException {
+            Files.write(file, output);
+        }
+    }
+
+    private static class Buffer extends OutputCapture {
+        private final RingBuffer buffer;
+        private Thread drainer;
+
+        Buffer(String folder, int capacity) {
+            super(folder);
+            this.buffer = new RingBuffer(capacity);
+        }
+
+        @Override
+        public void configure(ProcessBuilder processBuilder) {
+            processBuilder.redirectOutput(Redirect.PIPE);
+        }
+
+        @Override
+        public void start(Process process) {
+            drainer = Thread.ofVirtual().name("drain-" + folder).start(() -> drain(process.getInputStream()));
+        }
+
+        private void drain(InputStream in) {
+            byte[] chunk = new byte[8192];
+            try (in) {
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    buffer.write(chunk, read);
+                }
+            } catch (IOException e) {
+                log.error("Error reading output in folder {}: {}", folder, e.getMessage());
+            }
+        }
+
+        @Override
+        public void finish() throws InterruptedException {
+            if (drainer != null) {
+                drainer.join();
+            }
+            if (buffer.total == 0) {
+                return;
+            }
+            String output = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            if (buffer.dropped() > 0) {
+                log.info("Output of folder {} ({} earlier bytes dropped):{}{}",
+                        folder, buffer.dropped(), System.lineSeparator(), output);
+            } else {
+                log.info("Output of folder {}:{}{}", folder, System.lineSeparator(), output);
+            }
+        }
+
+        @Override
+        public byte[] captured() {
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void replay(byte[] output) {
+            if (output.length > 0) {
+                log.info("Output of folder {} (cached):{}{}", folder, System.lineSeparator(),
+                        new String(output, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Keeps the last {@code capacity} bytes written. The array starts small and grows up to the capacity
+     * as output arrives, so commands that print little do not hold a full buffer each.
+     */
+    static class RingBuffer {
+        private static final int INITIAL_SIZE = 8192;
+
+        private final int capacity;
+        private byte[] data;
+        private int head;
+        long total;
+
+        RingBuffer(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.data = new byte[Math.min(this.capacity, INITIAL_SIZE)];
+        }
+
+        void write(byte[] chunk, int length) {
+            if (data.length < capacity && total + length > data.length) {
+                // Nothing has wrapped yet, the bytes written so far are the first total bytes. A full array
+                // left head at 0, so point it past them again.
+                data = Arrays.copyOf(data, (int) Math.min(capacity, Math.max(2L * data.length, total + length)));
+                head = (int) total;
+            }
+            int offset = 0;
+            if (length > data.length) {
+                offset = length - data.length;
+                total += offset;
+                length = data.length;
+            }
+            int first = Math.min(length, data.length - head);
+            System.arraycopy(chunk, offset, data, head, first);
+            System.arraycopy(chunk, offset + first, data, 0, length - first);
+            head = (head + length) % data.length;
+            total += length;
+        }
+
+        long dropped() {
+            return Math.max(0, total - capacity);
+        }
+
+        byte[] toByteArray() {
+            if (total <= data.length) {
+                return Arrays.copyOf(data, (int) total);
+            }
+            byte[] out = new byte[data.length];
+            System.arraycopy(data, head, out, 0, data.length - head);
+            System.arraycopy(data, 0, out, data.length - head, head);
+            return out;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which entries of one input folder a walk visits. Version control metadata is always skipped,
+ * directories matching the ignore pattern, the exclude globs or {@code .gitignore} rules are pruned as
+ * a whole.
+ */
+public class PathFilter {
+
+    public static final Set<String> VCS_DIRECTORIES = Set.of(".git", ".hg", ".svn");
+
+    private final Path root;
+    private final Pattern ignorePattern;
+    private final List<PathMatcher> nameExcludes = new ArrayList<>();
+    private final List<PathMatcher> pathExcludes = new ArrayList<>();
+    private final boolean gitignore;
+    private final Map<Path, GitIgnore> rules = new ConcurrentHashMap<>();
+    private final GitIgnore rootRules;
+
+    public PathFilter(Path root, Pattern ignorePattern, List<String> excludes, boolean gitignore) throws IOException {
+        this.root = root;
+        this.ignorePattern = ignorePattern;
+        this.gitignore = gitignore;
+        if (excludes != null) {
+            for (String exclude : excludes) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + exclude);
+                (exclude.contains("/") ? pathExcludes : nameExcludes).add(matcher);
+            }
+        }
+        this.rootRules = gitignore ? GitIgnore.forRoot(root) : GitIgnore.EMPTY;
+    }
+
+    /**
+     * Returns whether the walk should descend into {@code dir}.
+     */
+    public boolean enterDirectory(Path dir) {
+        if (!dir.equals(root)) {
+            if (VCS_DIRECTORIES.contains(dir.getFileName().toString()) || isExcluded(dir, true)) {
+                return false;
+            }
+            if (ignorePattern != null && ignorePattern.matcher(dir.toString()).find()) {
+                return false;
+            }
+        }
+        if (gitignore) {
+            GitIgnore parent = dir.equals(root) ? rootRules : rules.getOrDefault(dir.getParent(), GitIgnore.EMPTY);
+            try {
+                rules.put(dir, parent.enter(dir));
+            } catch (IOException e) {
+                rules.put(dir, parent);
+            }
+        }
+        return true;
+    }
+
+    public void leaveDirectory(Path dir) {
+        rules.remove(dir);
+    }
+
+    public boolean acceptFile(Path file) {
+        return file.equals(root) || !isExcluded(file, false);
+    }
+
+    private boolean isExcluded(Path path, boolean directory) {
+        Path name = path.getFileName();
+        for (PathMatcher matcher : nameExcludes) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        if (!pathExcludes.isEmpty()) {
+            Path relative = root.relativize(path);
+            for (PathMatcher matcher : pathExcludes) {
+                if (matcher.matches(relative)) {
+                    return true;
+                }
+            }
+        }
+        if (gitignore) {
+            GitIgnore parentRules = rules.get(path.getParent());
+            return parentRules != null && parentRules.isIgnored(path, directory);
+        }
+        return false;
+    }
+}
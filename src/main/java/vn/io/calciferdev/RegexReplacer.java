@@ -0,0 +1,171 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regular expression replacement over UTF-8 content. Windows are decoded strictly, so files that are
+ * not valid UTF-8 fail the same way {@code Files.readString} does. A match has to fit in
+ * {@link #DEFAULT_OVERLAP} bytes of UTF-8 to be found across a window boundary; files smaller than one
+ * window behave exactly like {@code Matcher.replaceAll}. Windows are decoded into a per-thread buffer
+ * that grows to the largest window seen, at most one window plus the overlap.
+ */
+public class RegexReplacer implements ContentReplacer {
+
+    public static final int DEFAULT_OVERLAP = 64 * 1024;
+
+    private static final ThreadLocal<CharBuffer> CHARS = ThreadLocal.withInitial(() -> CharBuffer.allocate(8192));
+
+    private final Pattern pattern;
+    private final String replacement;
+
+    public RegexReplacer(Pattern pattern, String replacement) {
+        this.pattern = pattern;
+        this.replacement = replacement;
+    }
+
+    @Override
+    public int overlap() {
+        return DEFAULT_OVERLAP;
+    }
+
+    @Override
+    public String fingerprint() {
+        return "regex\0" + pattern.pattern() + "\0" + pattern.flags() + "\0" + replacement;
+    }
+
+    @Override
+    public boolean find(ByteBuffer window, boolean last) throws IOException {
+        int end = last ? window.limit() : alignBack(window, window.limit());
+        return pattern.matcher(decode(window, window.position(), end)).find();
+    }
+
+    @Override
+    public int replace(ByteBuffer window, int commitLimit, boolean last, Output out) throws IOException {
+        int position = window.position();
+        int contextStart = alignForward(window, 0, position);
+        int end = last ? window.limit() : alignBack(window, window.limit());
+        int commit = last ? end : Math.max(position, alignBack(window, commitLimit));
+
+        CharBuffer chars = decode(window, contextStart, end);
+        int contextChars = charCount(window, contextStart, position);
+        int commitChars = contextChars + charCount(window, position, commit);
+
+        Matcher matcher = pattern.matcher(chars);
+        matcher.region(contextChars, chars.length());
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+
+        StringBuilder text = null;
+        int appended = 0;
+        int lastEnd = contextChars;
+        while (matcher.find() && matcher.start() < commitChars) {
+            if (text == null) {
+                text = new StringBuilder();
+            }
+            int before = text.length() + matcher.start() - appended;
+            matcher.appendReplacement(text, replacement);
+            appended = matcher.end();
+            if (!out.isChanged() && !text.subSequence(before, text.length()).toString()
+                    .contentEquals(chars.subSequence(matcher.start(), matcher.end()))) {
+                out.markChanged();
+            }
+            lastEnd = matcher.end();
+        }
+        if (text == null) {
+            out.write(window, position, commit);
+            return commit;
+        }
+        int consumedChars = last ? chars.length() : Math.max(commitChars, lastEnd);
+        text.append(chars, lastEnd, consumedChars);
+        // appendReplacement copies from the start of the input, which includes the context.
+        out.write(text.substring(contextChars).getBytes(StandardCharsets.UTF_8));
+        return position + byteCount(window, position, consumedChars - contextChars);
+    }
+
+    @Override
+    public String replace(String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.replaceAll(replacement) : text;
+    }
+
+    private static CharBuffer decode(ByteBuffer window, int from, int to) throws IOException {
+        int capacity = to - from;
+        CharBuffer chars = CHARS.get();
+        if (chars.capacity() < capacity) {
+            chars = CharBuffer.allocate(capacity);
+            CHARS.set(chars);
+        }
+        chars.clear();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer input = window.duplicate().limit(to).position(from);
+        CoderResult result = decoder.decode(input, chars, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        result = decoder.flush(chars);
+        if (result.isError()) {
+            result.throwException();
+        }
+        return chars.flip();
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    private static int alignForward(ByteBuffer window, int index, int max) {
+        while (index < max && isContinuation(window.get(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int sequenceLength(byte lead) {
+        return (lead & 0x80) == 0 ? 1 : (lead & 0xe0) == 0xc0 ? 2 : (lead & 0xf0) == 0xe0 ? 3 : 4;
+    }
+
+    private static int alignBack(ByteBuffer window, int index) {
+        if (index <= window.position()) {
+            return index;
+        }
+        int floor = Math.max(window.position(), index - 4);
+        int lead = index - 1;
+        while (lead > floor && isContinuation(window.get(lead))) {
+            lead--;
+        }
+        return lead + sequenceLength(window.get(lead)) > index ? lead : index;
+    }
+
+    private static int charCount(ByteBuffer window, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            byte b = window.get(i);
+            if (!isContinuation(b)) {
+                count += (b & 0xf8) == 0xf0 ? 2 : 1;
+            }
+        }
+        return count;
+    }
+
+    private static int byteCount(ByteBuffer window, int from, int chars) {
+        int i = from;
+        int count = 0;
+        while (count < chars) {
+            byte b = window.get(i);
+            int length = sequenceLength(b);
+            count += length == 4 ? 2 : 1;
+            i += length;
+        }
+        return i - from;
+    }
+}
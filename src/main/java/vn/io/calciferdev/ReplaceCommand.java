@@ -1,16 +1,29 @@
 package vn.io.calciferdev;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
+
+import org.yaml.snakeyaml.Yaml;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -23,10 +36,10 @@ import picocli.CommandLine.Parameters;
 @Command(name = "replace", description = "Replace text in files and optionally folder names")
 public class ReplaceCommand implements Callable<Integer> {
 
-    @Parameters(index = "0", description = "Pattern to replace")
+    @Parameters(index = "0", arity = "0..1", description = "Pattern to replace")
     private String oldPattern;
 
-    @Parameters(index = "1", description = "Replacement text")
+    @Parameters(index = "1", arity = "0..1", description = "Replacement text")
     private String newPattern;
 
     @Option(names = {"-f", "--folder-list"}, description = "File containing list of folders")
@@ -35,6 +48,9 @@ public class ReplaceCommand implements Callable<Integer> {
     @Option(names = {"-i", "--input"}, description = "Input folder paths", arity = "0..*")
     private List<String> inputPaths;
 
+    @Option(names = {"-0", "--null"}, description = "Entries in the folder list are separated by NUL characters, as printed by find -print0")
+    private boolean nullSeparated;
+
     @Option(names = {"-n", "--folder-names"}, description = "Replace folder names as well")
     private boolean replaceFolderNames;
 
@@ -44,51 +60,272 @@ public class ReplaceCommand implements Callable<Integer> {
     @Option(names = {"-v", "--verbose"}, description = "Enable verbose output")
     private boolean verbose;
 
+    @Option(names = {"-l", "--literal"}, description = "Treat the pattern and replacement as literal text instead of a regular expression")
+    private boolean literal;
+
+    @Option(names = {"-m", "--mapping"}, description = "Literal old=new replacement, may be repeated to apply several in one pass")
+    private Map<String, String> mappings;
+
+    @Option(names = {"--mapping-file"}, description = "YAML file with a map of literal old: new replacements")
+    private File mappingFile;
+
+    @Option(names = {"-x", "--exclude"}, description = "Glob of files or folders to skip during the walk, may be repeated")
+    private List<String> excludes;
+
+    @Option(names = {"--gitignore"}, negatable = true, defaultValue = "true", fallbackValue = "true",
+            description = "Skip files and folders ignored by .gitignore rules (default: true)")
+    private boolean gitignore = true;
+
+    @Option(names = {"--index"}, description = "File remembering which files did not match, so unchanged files are skipped on the next run")
+    private Path indexFile;
+
+    @Option(names = {"--threads"}, description = "Number of threads used to walk and rewrite files (default: number of processors)")
+    private int threads;
+
+    @Option(names = {"--adaptive"}, description = "Adjust the number of files rewritten at once to their latency, up to --threads or twice the number of processors")
+    private boolean adaptive;
+
+    @Option(names = {"--journal"}, description = "Stage all changes and commit them at the end through this journal file, so an interrupted run can be resumed or rolled back")
+    private Path journalFile;
+
+    @Option(names = {"--resume"}, description = "Finish the interrupted run recorded in --journal")
+    private boolean resume;
+
+    @Option(names = {"--rollback"}, description = "Undo the interrupted run recorded in --journal")
+    private boolean rollback;
+
+    @Option(names = {"--dry-run"}, description = "Print the changes as a diff and the planned folder renames without writing anything")
+    private boolean dryRun;
+
+    @Option(names = {"--diff-lines"}, defaultValue = "20",
+            description = "Changed lines shown per file in a dry run, 0 to only count them (default: 20)")
+    private int diffLines = 20;
+
+    @Option(names = {"--stats"}, description = "Log a table of time per phase, folder latencies, bytes and skipped files")
+    private boolean stats;
+
+    @Option(names = {"--stats-file"}, description = "Write the statistics as JSON to this file")
+    private Path statsFile;
+
+    /**
+     * Metrics shared with the caller, set when {@code apply} reports them for all of its steps.
+     */
+    private Metrics metrics;
+
+    /**
+     * Dry run report shared with the caller, set when {@code apply} previews all of its steps.
+     */
+    private DryRunReport dryRunReport;
+
+    /**
+     * Listings shared with the caller, set when {@code apply} lets its steps walk each tree once.
+     */
+    private TreeSnapshot snapshot;
+
+    /**
+     * Concurrency limits shared with the caller, set when {@code apply --adaptive} runs its steps.
+     */
+    private ConcurrencyController concurrency;
+
+    /**
+     * Later replace steps that {@code apply} merged into this one. They share its folders and filters,
+     * their rules run after this command's own on every file, and only the last may rename folders.
+     */
+    private List<ReplaceCommand> fusedSteps = List.of();
+
+    private FileRewriter watchRewriter;
+
     private static class ProcessResult {
-        int filesProcessed;
-        int filesModified;
-        int foldersRenamed;
+        final LongAdder foldersProcessed = new LongAdder();
+        final LongAdder filesProcessed = new LongAdder();
+        final LongAdder filesModified = new LongAdder();
+        final LongAdder foldersRenamed = new LongAdder();
+        final LongAdder binaryFilesSkipped = new LongAdder();
+        final LongAdder unchangedFilesSkipped = new LongAdder();
+
+        void add(ProcessResult other) {
+            unchangedFilesSkipped.add(other.unchangedFilesSkipped.sum());
+            filesProcessed.add(other.filesProcessed.sum());
+            binaryFilesSkipped.add(other.binaryFilesSkipped.sum());
+            filesModified.add(other.filesModified.sum());
+            foldersRenamed.add(other.foldersRenamed.sum());
+        }
     }
 
     @Override
     public Integer call() {
-        try {
-            List<String> targetFolders = getTargetFolders();
-            if (targetFolders.isEmpty()) {
-                log.error("No folders specified. Use either -f or -i option.");
-                return 1;
-            }
-
-            Pattern pattern = Pattern.compile(oldPattern);
+        if (resume || rollback) {
+            return finishJournal();
+        }
+        ReplaceJournal journal = null;
+        try (TargetFolders targetFolders = TargetFolders.open(folderListFile, inputPaths, nullSeparated)) {
+            List<ContentReplacer> replacers = createReplacers();
+            ReplaceCommand last = fusedSteps.isEmpty() ? this : fusedSteps.get(fusedSteps.size() - 1);
+            ContentReplacer folderNameReplacer = last.replaceFolderNames ? replacers.get(replacers.size() - 1) : null;
             Pattern ignorePatternCompiled = this.ignorePattern != null ? Pattern.compile(this.ignorePattern) : null;
 
+            if (indexFile != null && !fusedSteps.isEmpty()) {
+                throw new IllegalArgumentException("An index cannot be used with fused replace steps");
+            }
+            FileStateIndex index = indexFile != null ? FileStateIndex.open(Invocation.resolve(indexFile), replacers.get(0).fingerprint()) : null;
             ProcessResult result = new ProcessResult();
-            processAllFolders(targetFolders, pattern, ignorePatternCompiled, result);
+            boolean ownMetrics = metrics == null;
+            if (ownMetrics) {
+                metrics = new Metrics();
+            }
+            boolean ownConcurrency = adaptive && concurrency == null;
+            if (ownConcurrency) {
+                concurrency = new ConcurrencyController();
+            }
+            boolean ownReport = dryRun && dryRunReport == null;
+            if (ownReport) {
+                dryRunReport = new DryRunReport(diffLines);
+            }
+            journal = journalFile != null && !dryRun ? ReplaceJournal.create(Invocation.resolve(journalFile)) : null;
+            List<FolderRename> deferredRenames;
+            ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads
+                    : concurrency != null ? concurrency.maxConcurrency(ConcurrencyController.Resource.CPU)
+                    : Runtime.getRuntime().availableProcessors());
+            try {
+                deferredRenames = processAllFolders(targetFolders, new FileRewriter(replacers, metrics, journal, dryRun ? dryRunReport : null),
+                        folderNameReplacer, ignorePatternCompiled, index, new TreeWalker(pool, metrics, snapshot), journal, result);
+            } finally {
+                pool.shutdown();
+            }
+            if (targetFolders.count() == 0) {
+                log.error("No folders specified. Use either -f or -i option.");
+                abort(journal);
+                return 1;
+            }
+            if (journal != null) {
+                journal.commit();
+                applyRenames(deferredRenames, journal, result);
+                journal.finish();
+            }
+            if (index != null && !dryRun) {
+                index.save();
+            }
+            if (ownMetrics) {
+                metrics.report("replace", stats, statsFile);
+            }
+            if (ownReport) {
+                dryRunReport.logSummary();
+            }
+            if (ownConcurrency) {
+                concurrency.logSummary();
+            }
             return logFinalResult(result);
         } catch (Exception e) {
             log.error("Error during replacement: {}", e.getMessage());
+            abort(journal);
+            return 1;
+        }
+    }
+
+    private int finishJournal() {
+        try {
+            if (journalFile == null) {
+                throw new IllegalArgumentException("--resume and --rollback need the --journal of the interrupted run");
+            }
+            if (resume && rollback) {
+                throw new IllegalArgumentException("Cannot use both --resume and --rollback");
+            }
+            Path file = Invocation.resolve(journalFile);
+            if (resume) {
+                log.info("Resumed the interrupted replacement: {} files and folders changed", ReplaceJournal.resume(file));
+            } else {
+                log.info("Rolled back the interrupted replacement: {} files and folders restored", ReplaceJournal.rollback(file));
+            }
+            return 0;
+        } catch (Exception e) {
+            log.error("Error finishing the journal {}: {}", journalFile, e.getMessage());
             return 1;
         }
     }
 
-    private List<String> getTargetFolders() throws IOException {
-        List<String> folders = new ArrayList<>();
-        if (folderListFile != null && inputPaths != null) {
-            throw new IllegalArgumentException("Cannot use both -f and -i options simultaneously");
+    private void abort(ReplaceJournal journal) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.abort();
+            log.info("Rolled back all changes of this run");
+        } catch (Exception e) {
+            log.error("Error rolling back, use --rollback with the journal {}: {}", journalFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites only the given files with the rules of this step and its fused steps, for
+     * {@code apply --watch}. Folders are not renamed and no journal or index is used. Returns the files
+     * that were modified.
+     */
+    public List<Path> rewriteFiles(List<Path> files) throws IOException {
+        if (metrics == null) {
+            metrics = new Metrics();
+        }
+        if (watchRewriter == null) {
+            watchRewriter = new FileRewriter(createReplacers(), metrics, null, null);
         }
-        if (folderListFile != null) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(folderListFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    folders.add(line.trim());
+        List<Path> modified = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                if (watchRewriter.rewrite(file) == FileRewriter.Result.MODIFIED) {
+                    modified.add(file);
+                    if (verbose) {
+                        log.info("Replaced content in file: {}", file);
+                    }
                 }
+            } catch (IOException e) {
+                log.error("Error processing file {}: {}", file, e.getMessage());
             }
-        } else if (inputPaths != null) {
-            folders.addAll(inputPaths);
-        } else {
-            throw new IllegalArgumentException("Either -f or -i option must be specified");
         }
-        return folders;
+        return modified;
+    }
+
+    private List<ContentReplacer> createReplacers() throws IOException {
+        List<ContentReplacer> replacers = new ArrayList<>();
+        replacers.add(createReplacer());
+        for (ReplaceCommand step : fusedSteps) {
+            replacers.add(step.createReplacer());
+        }
+        return replacers;
+    }
+
+    private ContentReplacer createReplacer() throws IOException {
+        Map<String, String> allMappings = new LinkedHashMap<>();
+        if (mappingFile != null) {
+            try (InputStream in = new FileInputStream(Invocation.resolve(mappingFile))) {
+                Map<?, ?> loaded = new Yaml().load(in);
+                if (loaded != null) {
+                    loaded.forEach((key, value) -> allMappings.put(String.valueOf(key), String.valueOf(value)));
+                }
+            }
+        }
+        if (mappings != null) {
+            allMappings.putAll(mappings);
+        }
+        if (oldPattern != null && newPattern == null) {
+            throw new IllegalArgumentException("A replacement must be given for pattern " + oldPattern);
+        }
+        if (!allMappings.isEmpty()) {
+            if (oldPattern != null) {
+                if (!literal) {
+                    throw new IllegalArgumentException("Pattern arguments can only be combined with mappings in --literal mode");
+                }
+                allMappings.put(oldPattern, newPattern);
+            }
+            if (allMappings.size() == 1) {
+                Map.Entry<String, String> mapping = allMappings.entrySet().iterator().next();
+                return new LiteralReplacer(mapping.getKey(), mapping.getValue());
+            }
+            return new AhoCorasickReplacer(allMappings);
+        }
+        if (oldPattern == null) {
+            throw new IllegalArgumentException("Either a pattern and replacement or --mapping must be specified");
+        }
+        return literal ? new LiteralReplacer(oldPattern, newPattern)
+                : new RegexReplacer(Pattern.compile(oldPattern), newPattern);
     }
 
     private boolean shouldIgnore(String folder, Pattern ignorePattern) {
@@ -98,34 +335,82 @@ public class ReplaceCommand implements Callable<Integer> {
         return ignorePattern.matcher(folder).find();
     }
 
-    private void processAllFolders(List<String> folders, Pattern pattern, Pattern ignorePattern, ProcessResult result) {
-        for (String folder : folders) {
+    /**
+     * Rewrites the files of every folder and renames folders, except with a journal, where the renames
+     * are only planned and have to wait for the commit; they are returned then.
+     */
+    private List<FolderRename> processAllFolders(TargetFolders folders, FileRewriter rewriter, ContentReplacer folderNameReplacer,
+            Pattern ignorePattern, FileStateIndex index, TreeWalker walker, ReplaceJournal journal, ProcessResult result) {
+        List<FolderRename> deferredRenames = new ArrayList<>();
+        if (dryRun) {
+            // A dry run writes nothing, so folders cannot affect each other and several are scanned at
+            // once, each with the parallel walk. The semaphore keeps the folder list read lazily.
+            int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            Semaphore queued = new Semaphore(2 * workers);
+            try (ExecutorService executor = Executors.newFixedThreadPool(workers,
+                    Thread.ofVirtual().name("dry-run-", 0).factory())) {
+                while (folders.hasNext()) {
+                    String folder = folders.next();
+                    queued.acquireUninterruptibly();
+                    executor.submit(() -> {
+                        try {
+                            processTarget(folder, rewriter, folderNameReplacer, ignorePattern, index, walker, null,
+                                    deferredRenames, result);
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                }
+            }
+            return deferredRenames;
+        }
+        while (folders.hasNext()) {
+            processTarget(folders.next(), rewriter, folderNameReplacer, ignorePattern, index, walker, journal,
+                    deferredRenames, result);
+        }
+        return deferredRenames;
+    }
+
+    private void processTarget(String folder, FileRewriter rewriter, ContentReplacer folderNameReplacer, Pattern ignorePattern,
+            FileStateIndex index, TreeWalker walker, ReplaceJournal journal, List<FolderRename> deferredRenames,
+            ProcessResult result) {
+        if (verbose) {
+            log.info("Processing folder: {}", folder);
+        }
+        if (shouldIgnore(folder, ignorePattern)) {
+            metrics.skipped("ignored folder");
             if (verbose) {
-                log.info("Processing folder: {}", folder);
+                log.info("Skipping ignored folder: {}", folder);
             }
-            if (shouldIgnore(folder, ignorePattern)) {
-                if (verbose) {
-                    log.info("Skipping ignored folder: {}", folder);
-                }
-                continue;
+            return;
+        }
+        Metrics.FolderTimer timer = metrics.startFolder("replace", folder);
+        try {
+            processFolder(Invocation.resolve(folder), rewriter, folderNameReplacer, ignorePattern, index, walker,
+                    journal, deferredRenames, result);
+            result.foldersProcessed.increment();
+            timer.finish(true);
+            if (verbose) {
+                log.info("Successfully processed folder: {}", folder);
             }
-            try {
-                processFolder(Path.of(folder), pattern);
-                result.filesProcessed++;
-                if (verbose) {
-                    log.info("Successfully processed folder: {}", folder);
-                }
-            } catch (Exception e) {
-                if (verbose) {
-                    log.error("Failed to process folder {}: {}", folder, e.getMessage());
-                }
+        } catch (Exception e) {
+            timer.finish(false);
+            if (verbose) {
+                log.error("Failed to process folder {}: {}", folder, e.getMessage());
             }
         }
     }
 
     private int logFinalResult(ProcessResult result) {
-        if (result.filesProcessed > 0) {
-            log.info("Text replacement completed successfully in {} folders", result.filesProcessed);
+        if (result.foldersProcessed.sum() > 0 && dryRun) {
+            log.info("Dry run completed in {} folders: {} files processed, {} binary files skipped, {} unchanged files skipped",
+                result.foldersProcessed.sum(), result.filesProcessed.sum(), result.binaryFilesSkipped.sum(),
+                result.unchangedFilesSkipped.sum());
+            return 0;
+        } else if (result.foldersProcessed.sum() > 0) {
+            log.info("Text replacement completed successfully in {} folders: {} files processed, {} files modified, {} binary files skipped, {} unchanged files skipped, {} folders renamed",
+                result.foldersProcessed.sum(), result.filesProcessed.sum(), result.filesModified.sum(),
+                result.binaryFilesSkipped.sum(), result.unchangedFilesSkipped.sum(), result.foldersRenamed.sum());
             return 0;
         } else {
             log.error("Text replacement failed in all folders");
@@ -133,66 +418,228 @@ public class ReplaceCommand implements Callable<Integer> {
         }
     }
 
-    private void processFolder(Path folder, Pattern pattern) throws IOException {
+    private void processFolder(Path folder, FileRewriter rewriter, ContentReplacer folderNameReplacer, Pattern ignorePattern,
+            FileStateIndex index, TreeWalker walker, ReplaceJournal journal, List<FolderRename> deferredRenames,
+            ProcessResult total) throws IOException {
         ProcessResult result = new ProcessResult();
-        processFiles(folder, pattern, result);
-        if (replaceFolderNames) {
-            processFolders(folder, pattern, result);
+        // Renames are planned first, so a folder whose renames collide is left untouched. The second walk
+        // reads the listings of the first from memory.
+        if (folderNameReplacer != null && walker.snapshot() == null) {
+            walker = walker.withSnapshot(new TreeSnapshot());
+        }
+        List<FolderRename> renames = folderNameReplacer == null ? List.of()
+                : planRenames(folder, folderNameReplacer, new PathFilter(folder, ignorePattern, excludes, gitignore), walker);
+        PathFilter filter = new PathFilter(folder, ignorePattern, excludes, gitignore);
+        processFiles(folder, rewriter, filter, index, walker, result);
+        if (!renames.isEmpty()) {
+            if (dryRun) {
+                renames.forEach(rename -> dryRunReport.renamed(rename.from(), rename.to()));
+            } else if (journal != null) {
+                deferredRenames.addAll(renames);
+            } else {
+                applyRenames(renames, null, result);
+            }
         }
         logFolderResult(folder, result);
+        total.add(result);
+    }
+
+    private void processFiles(Path folder, FileRewriter rewriter, PathFilter filter, FileStateIndex index,
+            TreeWalker walker, ProcessResult result) throws IOException {
+        walker.walk(folder, new TreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return filter.enterDirectory(dir);
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return;
+                }
+                if (filter.acceptFile(file)) {
+                    processFile(file, attrs, rewriter, index, result);
+                } else {
+                    metrics.skipped("excluded");
+                }
+            }
+
+            @Override
+            public void postVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                filter.leaveDirectory(dir);
+            }
+
+            @Override
+            public void visitFailed(Path path, IOException e) {
+                log.error("Error processing file {}: {}", path, e.getMessage());
+            }
+        });
     }
 
-    private void processFiles(Path folder, Pattern pattern, ProcessResult result) throws IOException {
-        try (Stream<Path> stream = Files.walk(folder)) {
-            stream.filter(Files::isRegularFile)
-                .forEach(file -> {
+    private void processFile(Path file, BasicFileAttributes attrs, FileRewriter rewriter, FileStateIndex index,
+            ProcessResult result) {
+        Metrics.FileTimer timer = metrics.startFile(file);
+        try {
+            if (verbose) {
+                log.info("Processing file: {}", file);
+            }
+            FileRewriter.ContentHash hash = null;
+            FileStateIndex.Entry previous = null;
+            long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            if (index != null) {
+                previous = index.get(file);
+                if (previous != null && previous.size() == attrs.size()) {
+                    if (previous.modified() == modified) {
+                        result.unchangedFilesSkipped.increment();
+                        result.filesProcessed.increment();
+                        metrics.skipped("unchanged");
+                        timer.finish("unchanged", attrs.size());
+                        return;
+                    }
+                    hash = new FileRewriter.ContentHash(previous.contentHash());
+                } else {
+                    hash = new FileRewriter.ContentHash(null);
+                }
+            }
+            FileRewriter.Result outcome;
+            if (concurrency != null) {
+                try (ConcurrencyController.Permit permit = concurrency.acquire(ConcurrencyController.Resource.CPU)) {
                     try {
-                        if (verbose) {
-                            log.info("Processing file: {}", file);
-                        }
-                        String content = Files.readString(file);
-                        String newContent = pattern.matcher(content).replaceAll(newPattern);
-                        if (!content.equals(newContent)) {
-                            Files.writeString(file, newContent);
-                            result.filesModified++;
-                            if (verbose) {
-                                log.info("Replaced content in file: {}", file);
-                            }
-                        }
-                        result.filesProcessed++;
+                        outcome = rewriter.rewrite(file, hash);
                     } catch (IOException e) {
-                        log.error("Error processing file {}: {}", file, e.getMessage());
+                        permit.failed(e);
+                        throw e;
+                    }
+                }
+            } else {
+                outcome = rewriter.rewrite(file, hash);
+            }
+            if (index != null) {
+                if (hash.value() != null) {
+                    index.put(file, new FileStateIndex.Entry(attrs.size(), modified, hash.value()));
+                } else if (previous != null) {
+                    index.remove(file);
+                }
+            }
+            switch (outcome) {
+                case MODIFIED -> {
+                    result.filesModified.increment();
+                    if (snapshot != null && !dryRun) {
+                        snapshot.changed(file);
+                    }
+                    if (verbose) {
+                        log.info("Replaced content in file: {}", file);
+                    }
+                }
+                case BINARY -> {
+                    result.binaryFilesSkipped.increment();
+                    metrics.skipped("binary");
+                    if (verbose) {
+                        log.info("Skipping binary file: {}", file);
                     }
-                });
+                }
+                case UNCHANGED -> {
+                }
+            }
+            result.filesProcessed.increment();
+            timer.finish(outcome.name().toLowerCase(), attrs.size());
+        } catch (IOException e) {
+            log.error("Error processing file {}: {}", file, e.getMessage());
         }
     }
 
-    private void processFolders(Path folder, Pattern pattern, ProcessResult result) throws IOException {
-        try (Stream<Path> stream = Files.walk(folder)) {
-            stream.filter(Files::isDirectory)
-                .forEach(dir -> {
-                    try {
-                        String dirName = dir.getFileName().toString();
-                        String newDirName = pattern.matcher(dirName).replaceAll(newPattern);
-                        if (!dirName.equals(newDirName)) {
-                            Path newPath = dir.resolveSibling(newDirName);
-                            Files.move(dir, newPath);
-                            result.foldersRenamed++;
-                            if (verbose) {
-                                log.info("Renamed folder from {} to {}", dir, newPath);
-                            }
-                        }
-                    } catch (IOException e) {
-                        log.error("Error renaming folder {}: {}", dir, e.getMessage());
+    private record FolderRename(Path from, Path to) {
+    }
+
+    /**
+     * Collects the folder renames of a tree in one walk, children before their parent, so that applying
+     * them in order never moves a folder out from under a rename still to come. A folder is only left
+     * once all of its subfolders were, so the parallel walk keeps that order. Nothing is renamed if two
+     * folders would get the same name or a new name is taken already.
+     */
+    private List<FolderRename> planRenames(Path folder, ContentReplacer replacer, PathFilter filter, TreeWalker walker)
+            throws IOException {
+        List<FolderRename> renames = Collections.synchronizedList(new ArrayList<>());
+        Map<Path, Path> targets = new ConcurrentHashMap<>();
+        List<String> collisions = Collections.synchronizedList(new ArrayList<>());
+        walker.walk(folder, new TreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return filter.enterDirectory(dir);
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+            }
+
+            @Override
+            public void visitFailed(Path path, IOException e) {
+                log.error("Error renaming folder {}: {}", path, e.getMessage());
+            }
+
+            @Override
+            public void postVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                filter.leaveDirectory(dir);
+                if (dir.getFileName() == null) {
+                    return;
+                }
+                String dirName = dir.getFileName().toString();
+                String newDirName = replacer.replace(dirName);
+                if (dirName.equals(newDirName)) {
+                    return;
+                }
+                if (newDirName.isEmpty() || newDirName.contains("/") || newDirName.contains(File.separator)) {
+                    collisions.add(dir + " would be renamed to the invalid name '" + newDirName + "'");
+                    return;
+                }
+                Path target = dir.resolveSibling(newDirName);
+                Path previous = targets.putIfAbsent(target, dir);
+                try {
+                    if (previous != null) {
+                        collisions.add(previous + " and " + dir + " would both be renamed to " + target);
+                    } else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isSameFile(dir, target)) {
+                        collisions.add(dir + " would be renamed to the existing " + target);
                     }
-                });
+                } catch (IOException e) {
+                    visitFailed(target, e);
+                }
+                renames.add(new FolderRename(dir, target));
+            }
+        });
+        if (!collisions.isEmpty()) {
+            collisions.forEach(collision -> log.error("Folder rename collision: {}", collision));
+            throw new IOException(collisions.size() + " folder renames collide, no folders were renamed in " + folder);
+        }
+        return renames;
+    }
+
+    private void applyRenames(List<FolderRename> renames, ReplaceJournal journal, ProcessResult result) throws IOException {
+        if (journal != null) {
+            Map<Path, Path> planned = new LinkedHashMap<>();
+            renames.forEach(rename -> planned.put(rename.from(), rename.to()));
+            journal.renaming(planned);
+        }
+        for (FolderRename rename : renames) {
+            try {
+                Files.move(rename.from(), rename.to());
+                if (snapshot != null) {
+                    snapshot.renamed(rename.from(), rename.to());
+                }
+                result.foldersRenamed.increment();
+                if (verbose) {
+                    log.info("Renamed folder from {} to {}", rename.from(), rename.to());
+                }
+            } catch (IOException e) {
+                log.error("Error renaming folder {}: {}", rename.from(), e.getMessage());
+            }
         }
     }
 
     private void logFolderResult(Path folder, ProcessResult result) {
         if (verbose) {
-            log.info("Folder {} processed: {} files processed, {} files modified, {} folders renamed", 
-                folder, result.filesProcessed, result.filesModified, result.foldersRenamed);
+            log.info("Folder {} processed: {} files processed, {} files modified, {} binary files skipped, {} folders renamed", 
+                folder, result.filesProcessed.sum(), result.filesModified.sum(), result.binaryFilesSkipped.sum(),
+                result.foldersRenamed.sum());
         }
     }
-} 
\ No newline at end of file
+}
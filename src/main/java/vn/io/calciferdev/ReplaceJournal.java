@@ -0,0 +1,320 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Append-only journal of a transactional {@code replace}. New file contents are staged next to the
+ * originals and only listed in the journal while the run walks the tree; nothing visible changes until
+ * {@link #commit()}, which keeps a hard link to every original and then atomically renames the staged
+ * file over it. Folder renames are planned in full and journaled before the first one is made. The journal is fsync'd in batches and
+ * before each step that depends on it, so an interrupted run can always be rolled back, and resumed
+ * once all of its changes were staged.
+ *
+ * <pre>
+ * header: int magic, long id
+ * record: byte type, then the paths of the record as int length + UTF-8 bytes
+ * </pre>
+ *
+ * Staged files are called {@code .<name>.<id>.new} and originals {@code .<name>.<id>.orig}, both in the
+ * folder of the file, so every rename stays within one file system.
+ */
+public class ReplaceJournal {
+
+    private static final int MAGIC = 0x43464a31;
+    private static final int SYNC_BATCH = 256;
+    private static final byte STAGED = 1;
+    private static final byte COMMIT = 2;
+    private static final byte RENAMED = 3;
+    private static final byte DONE = 4;
+
+    private record Record(byte type, Path path, Path target) {
+    }
+
+    private final Path file;
+    private final long id;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final List<Path> staged = new ArrayList<>();
+    private final List<Record> renames = new ArrayList<>();
+    private int unsynced;
+
+    private ReplaceJournal(Path file, long id, FileChannel channel) {
+        this.file = file;
+        this.id = id;
+        this.channel = channel;
+        this.out = channel == null ? null : new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Starts a new transaction. An existing journal belongs to an unfinished run and has to be resumed
+     * or rolled back first.
+     */
+    public static ReplaceJournal create(Path file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            throw new IllegalArgumentException("The journal " + file + " of an unfinished run exists, use --resume or --rollback");
+        }
+        ReplaceJournal journal = new ReplaceJournal(file, ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, channel);
+        journal.out.writeInt(MAGIC);
+        journal.out.writeLong(journal.id);
+        journal.sync();
+        return journal;
+    }
+
+    /**
+     * Records that new content for a file is about to be written and returns where to write it. The
+     * record comes first, so a rollback also removes content whose writing was interrupted.
+     */
+    public synchronized Path prepare(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        append(STAGED, absolute, null);
+        return stagedPath(absolute, id);
+    }
+
+    /**
+     * Marks the content written to the path returned by {@link #prepare} as complete and to be committed.
+     */
+    public synchronized void staged(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        if (absolute.equals(this.file.toAbsolutePath())) {
+            // The journal lies inside the tree being rewritten and must not replace itself.
+            Files.delete(stagedPath(absolute, id));
+            return;
+        }
+        staged.add(absolute);
+    }
+
+    /**
+     * Replaces every original with its staged content. From here on the run can be resumed.
+     */
+    public synchronized void commit() throws IOException {
+        sync();
+        append(COMMIT, null, null);
+        sync();
+        for (Path path : staged) {
+            install(path, id);
+        }
+    }
+
+    /**
+     * Records planned folder renames, in the order they will be made, before the first one is made. A
+     * resumed run makes the ones still missing, a rollback undoes the ones made.
+     */
+    public synchronized void renaming(Map<Path, Path> planned) throws IOException {
+        for (Map.Entry<Path, Path> rename : planned.entrySet()) {
+            Record record = new Record(RENAMED, rename.getKey().toAbsolutePath(), rename.getValue().toAbsolutePath());
+            append(RENAMED, record.path(), record.target());
+            renames.add(record);
+        }
+        sync();
+    }
+
+    /**
+     * Marks the transaction as complete, removes the kept originals and then the journal itself.
+     */
+    public synchronized void finish() throws IOException {
+        append(DONE, null, null);
+        sync();
+        channel.close();
+        for (Path path : staged) {
+            Files.deleteIfExists(backupPath(afterRenames(path, renames), id));
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * Undoes whatever this run has staged or committed so far, after an error.
+     */
+    public synchronized void abort() throws IOException {
+        sync();
+        channel.close();
+        rollback(file);
+    }
+
+    /**
+     * Completes an interrupted run: installs the staged files that are not in place yet and redoes the
+     * journaled folder renames. Returns the number of files and folders changed.
+     */
+    public static int resume(Path file) throws IOException {
+        ReplaceJournal journal = read(file);
+        List<Record> records = journal.records();
+        if (records.stream().noneMatch(record -> record.type() == COMMIT)) {
+            throw new IllegalArgumentException("The run was interrupted before all of its changes were staged, it can only be rolled back");
+        }
+        boolean done = records.stream().anyMatch(record -> record.type() == DONE);
+        int changed = 0;
+        for (Record record : done ? List.<Record>of() : records) {
+            if (record.type() == STAGED && Files.exists(stagedPath(record.path(), journal.id))) {
+                install(record.path(), journal.id);
+                changed++;
+            } else if (record.type() == RENAMED && Files.exists(record.path()) && !Files.exists(record.target())) {
+                Files.move(record.path(), record.target());
+                changed++;
+            }
+        }
+        List<Record> renames = records.stream().filter(record -> record.type() == RENAMED).toList();
+        for (Record record : records) {
+            if (record.type() == STAGED) {
+                Files.deleteIfExists(backupPath(afterRenames(record.path(), renames), journal.id));
+            }
+        }
+        Files.delete(file);
+        return changed;
+    }
+
+    /**
+     * Restores the state from before an interrupted run: folder renames are undone and originals put
+     * back, newest first, and staged files are removed. Returns the number of files and folders restored.
+     */
+    public static int rollback(Path file) throws IOException {
+        ReplaceJournal journal = read(file);
+        List<Record> records = journal.records();
+        if (records.stream().anyMatch(record -> record.type() == DONE)) {
+            throw new IllegalArgumentException("The run was completed and its originals removed, it can only be resumed");
+        }
+        int restored = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            Record record = records.get(i);
+            if (record.type() == RENAMED) {
+                if (Files.exists(record.target()) && !Files.exists(record.path())) {
+                    Files.move(record.target(), record.path());
+                    restored++;
+                }
+            } else if (record.type() == STAGED) {
+                Path backup = backupPath(record.path(), journal.id);
+                if (Files.exists(backup)) {
+                    // When the original was not replaced yet both names link the same file, then the
+                    // move does nothing and the extra link is removed below.
+                    FileRewriter.moveAtomically(backup, record.path());
+                    Files.deleteIfExists(backup);
+                    restored++;
+                }
+                Files.deleteIfExists(stagedPath(record.path(), journal.id));
+            }
+        }
+        Files.delete(file);
+        return restored;
+    }
+
+    /**
+     * Where a file staged before the folder renames is found after them.
+     */
+    private static Path afterRenames(Path path, List<Record> renames) {
+        for (Record rename : renames) {
+            if (path.startsWith(rename.path())) {
+                path = rename.target().resolve(rename.path().relativize(path));
+            }
+        }
+        return path;
+    }
+
+    private static void install(Path path, long id) throws IOException {
+        Path backup = backupPath(path, id);
+        if (!Files.exists(backup)) {
+            try {
+                Files.createLink(backup, path);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(path, backup, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+        FileRewriter.moveAtomically(stagedPath(path, id), path);
+    }
+
+    static Path stagedPath(Path path, long id) {
+        return path.resolveSibling("." + path.getFileName() + "." + Long.toHexString(id) + ".new");
+    }
+
+    static Path backupPath(Path path, long id) {
+        return path.resolveSibling("." + path.getFileName() + "." + Long.toHexString(id) + ".orig");
+    }
+
+    private void append(byte type, Path path, Path target) throws IOException {
+        out.writeByte(type);
+        if (path != null) {
+            writePath(path);
+        }
+        if (target != null) {
+            writePath(target);
+        }
+        // Every record reaches the operating system before the change it describes, so it survives the
+        // process being killed; only the fsync that protects against power loss is batched.
+        out.flush();
+        if (++unsynced >= SYNC_BATCH) {
+            sync();
+        }
+    }
+
+    private void writePath(Path path) throws IOException {
+        byte[] bytes = path.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    private static ReplaceJournal read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            throw new IllegalArgumentException("No journal found at " + file);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException(file + " is not a replace journal");
+            }
+            return new ReplaceJournal(file, in.readLong(), null);
+        }
+    }
+
+    /**
+     * Reads all complete records; a record cut off by a crash ends the journal.
+     */
+    private List<Record> records() throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.readInt();
+            in.readLong();
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case STAGED -> records.add(new Record(type, readPath(in), null));
+                    case RENAMED -> records.add(new Record(type, readPath(in), readPath(in)));
+                    case COMMIT, DONE -> records.add(new Record(type, null, null));
+                    default -> throw new IOException("Corrupt journal record of type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            return records;
+        }
+    }
+
+    private static Path readPath(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException();
+        }
+        return Path.of(new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,275 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Results of {@code run} kept in a cache directory, so a command that already succeeded in a folder is
+ * not run again while nothing it depends on changed. The key is a SHA-256 over the command, the folder's
+ * path, the listed environment variables and a fingerprint of the folder's content:
+ * <ul>
+ * <li>in a git work tree, the tree hash of the folder at {@code HEAD} plus the output of
+ * {@code git status} and the content of every changed or untracked file, so ignored build output does
+ * not count;</li>
+ * <li>otherwise the paths, sizes and SHA-256 of all files not excluded by {@code .gitignore}, hashed in
+ * parallel.</li>
+ * </ul>
+ * A successful run is stored under the fingerprint from before and from after it, since a command that
+ * writes into its folder changes the content the next run starts from.
+ *
+ * <pre>
+ * entry: int magic, int exitCode, boolean hasOutput, int length, output bytes
+ * </pre>
+ */
+@Slf4j
+public class RunCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x43465243;
+
+    public record Entry(int exitCode, byte[] output) {
+    }
+
+    private final Path dir;
+    private final String command;
+    private final List<String> environment;
+    private final Metrics metrics;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param environment names of the environment variables that affect the command; {@code PATH} is
+     *                    always included
+     */
+    public RunCache(Path dir, String command, List<String> environment, int threads, Metrics metrics) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.command = command;
+        List<String> names = new ArrayList<>(environment);
+        if (!names.contains("PATH")) {
+            names.add("PATH");
+        }
+        names.sort(Comparator.naturalOrder());
+        this.environment = names;
+        this.metrics = metrics;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Computes the key of running the command in a folder now, or returns null when the folder cannot
+     * be fingerprinted and the command has to run uncached.
+     */
+    public String key(Path folder) {
+        try {
+            MessageDigest key = sha256();
+            update(key, command);
+            update(key, folder.toAbsolutePath().normalize().toString());
+            for (String name : environment) {
+                String value = Invocation.getenv(name);
+                update(key, name + "=" + (value != null ? value : ""));
+            }
+            String fingerprint = gitFingerprint(folder);
+            update(key, fingerprint != null ? fingerprint : contentFingerprint(folder));
+            return HexFormat.of().formatHex(key.digest());
+        } catch (IOException e) {
+            log.error("Error fingerprinting folder {}: {}", folder, e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stored result, or null when there is none or, if {@code needOutput}, it was stored
+     * without output.
+     */
+    public Entry get(String key, boolean needOutput) {
+        Path file = dir.resolve(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int exitCode = in.readInt();
+            boolean hasOutput = in.readBoolean();
+            if (needOutput && !hasOutput) {
+                return null;
+            }
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            return new Entry(exitCode, hasOutput ? output : null);
+        } catch (IOException e) {
+            log.error("Error reading cached result {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(String key, Entry entry) {
+        Path file = dir.resolve(key);
+        try {
+            Path temp = Files.createTempFile(dir, "." + key, ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(entry.exitCode());
+                    out.writeBoolean(entry.output() != null);
+                    byte[] output = entry.output() != null ? entry.output() : new byte[0];
+                    out.writeInt(output.length);
+                    out.write(output);
+                }
+                FileRewriter.moveAtomically(temp, file);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.error("Error caching result {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Fingerprint of a folder inside a git work tree with at least one commit, or null otherwise.
+     */
+    private String gitFingerprint(Path folder) throws IOException, InterruptedException {
+        byte[] revParse = git(folder, "rev-parse", "--show-toplevel", "HEAD:./");
+        if (revParse == null) {
+            return null;
+        }
+        String[] lines = new String(revParse, StandardCharsets.UTF_8).split("\n");
+        if (lines.length < 2) {
+            return null;
+        }
+        Path root = Path.of(lines[0].trim());
+        byte[] status = git(folder, "status", "--porcelain=v1", "-z", "--untracked-files=all", "--", ".");
+        if (status == null) {
+            return null;
+        }
+        MessageDigest fingerprint = sha256();
+        update(fingerprint, "git " + lines[1].trim());
+        fingerprint.update(status);
+        // Entries are "XY path", renames and copies are followed by the original path.
+        String[] entries = new String(status, StandardCharsets.UTF_8).split("\0");
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i];
+            if (entry.length() < 4) {
+                continue;
+            }
+            Path file = root.resolve(entry.substring(3));
+            if (Files.isRegularFile(file)) {
+                update(fingerprint, ContentStore.digest(file, metrics));
+            }
+            if (entry.charAt(0) == 'R' || entry.charAt(0) == 'C') {
+                i++;
+            }
+        }
+        return HexFormat.of().formatHex(fingerprint.digest());
+    }
+
+    private byte[] git(Path folder, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(List.of(args));
+        ProcessBuilder processBuilder = new ProcessBuilder(command).directory(folder.toFile());
+        Invocation.configure(processBuilder);
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        Process process;
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            // No git installed.
+            return null;
+        }
+        metrics.record(Metrics.Phase.SPAWN, start);
+        start = System.nanoTime();
+        byte[] output;
+        try (InputStream in = process.getInputStream()) {
+            output = in.readAllBytes();
+        }
+        int exitCode = process.waitFor();
+        metrics.record(Metrics.Phase.WAIT, start);
+        return exitCode == 0 ? output : null;
+    }
+
+    /**
+     * Fingerprint of the files of a folder, walked and hashed in parallel and combined in path order.
+     */
+    private String contentFingerprint(Path folder) throws IOException {
+        PathFilter filter = new PathFilter(folder, null, null, true);
+        Queue<String> files = new ConcurrentLinkedQueue<>();
+        Queue<IOException> errors = new ConcurrentLinkedQueue<>();
+        new TreeWalker(pool, metrics).walk(folder, new TreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return filter.enterDirectory(dir);
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || !filter.acceptFile(file)) {
+                    return;
+                }
+                try {
+                    files.add(folder.relativize(file) + "\0" + attrs.size() + "\0" + ContentStore.digest(file, metrics));
+                } catch (IOException e) {
+                    visitFailed(file, e);
+                }
+            }
+
+            @Override
+            public void postVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                filter.leaveDirectory(dir);
+            }
+
+            @Override
+            public void visitFailed(Path path, IOException e) {
+                errors.add(e);
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw errors.peek();
+        }
+        List<String> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.naturalOrder());
+        MessageDigest fingerprint = sha256();
+        update(fingerprint, "files");
+        sorted.forEach(file -> update(fingerprint, file));
+        return HexFormat.of().formatHex(fingerprint.digest());
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package vn.io.calciferdev;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -28,25 +32,103 @@ public class RunCommand implements Callable<Integer> {
     @Option(names = {"-i", "--input"}, description = "Input folder paths", arity = "0..*")
     private List<String> inputPaths;
 
+    @Option(names = {"-0", "--null"}, description = "Entries in the folder list are separated by NUL characters, as printed by find -print0")
+    private boolean nullSeparated;
+
     @Option(names = {"-v", "--verbose"}, description = "Enable verbose output")
     private boolean verbose;
 
+    @Option(names = {"-p", "--parallel"}, description = "Number of folders to process concurrently (default: 1)")
+    private int parallel = 1;
+
+    @Option(names = {"--adaptive"}, description = "Adjust the number of concurrent commands to their latency, up to --parallel or twice the number of processors")
+    private boolean adaptive;
+
+    @Option(names = {"--fail-fast"}, description = "Cancel pending folders after the first failure")
+    private boolean failFast;
+
+    @Option(names = {"-o", "--output"}, description = "Output capture mode: discard, buffer or file (default: buffer when verbose, otherwise discard)")
+    private OutputCapture.Mode outputMode;
+
+    @Option(names = {"--log-dir"}, description = "Directory for per-folder log files in file output mode")
+    private Path logDir;
+
+    @Option(names = {"--buffer-size"}, description = "Maximum bytes of output kept per folder in buffer mode (default: 1048576)")
+    private int bufferSize = OutputCapture.DEFAULT_BUFFER_SIZE;
+
+    @Option(names = {"-t", "--timeout"}, description = "Seconds to wait for the command in each folder before killing it (default: no limit)")
+    private long timeout;
+
+    @Option(names = {"--cache"}, description = "Directory of cached results; folders where the command already succeeded with the same content and environment are skipped")
+    private Path cacheDir;
+
+    @Option(names = {"--cache-env"}, description = "Environment variable that is part of the cache key, may be repeated (PATH always is)")
+    private List<String> cacheEnv;
+
+    @Option(names = {"--stats"}, description = "Log a table of time per phase, folder latencies and skipped folders")
+    private boolean stats;
+
+    @Option(names = {"--stats-file"}, description = "Write the statistics as JSON to this file")
+    private Path statsFile;
+
+    /**
+     * Metrics shared with the caller, set when {@code apply} reports them for all of its steps.
+     */
+    private Metrics metrics;
+
+    /**
+     * Concurrency limits shared with the caller, set when {@code apply --adaptive} runs its steps.
+     */
+    private ConcurrencyController concurrency;
+
+    private RunCache cache;
+
+    private record Outcome(int exitCode, boolean timedOut, byte[] output) {
+    }
+
     private static class ProcessResult {
-        int successCount;
-        int failureCount;
+        final AtomicInteger successCount = new AtomicInteger();
+        final AtomicInteger failureCount = new AtomicInteger();
+        final AtomicInteger cancelledCount = new AtomicInteger();
+        final AtomicInteger timedOutCount = new AtomicInteger();
+        final AtomicInteger cachedCount = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
     }
 
     @Override
     public Integer call() {
-        try {
-            List<String> targetFolders = getTargetFolders();
-            if (targetFolders.isEmpty()) {
+        try (TargetFolders targetFolders = TargetFolders.open(folderListFile, inputPaths, nullSeparated)) {
+            ProcessResult result = new ProcessResult();
+            boolean ownMetrics = metrics == null;
+            if (ownMetrics) {
+                metrics = new Metrics();
+            }
+            boolean ownConcurrency = adaptive && concurrency == null;
+            if (ownConcurrency) {
+                concurrency = new ConcurrencyController(ConcurrencyController.DEFAULT_MAX_OPEN_FILES,
+                        parallel > 1 ? parallel : 2 * Runtime.getRuntime().availableProcessors());
+            }
+            if (cacheDir != null) {
+                cache = new RunCache(Invocation.resolve(cacheDir), command, cacheEnv != null ? cacheEnv : List.of(),
+                        Runtime.getRuntime().availableProcessors(), metrics);
+            }
+            try {
+                processFolders(targetFolders, result);
+            } finally {
+                if (cache != null) {
+                    cache.close();
+                }
+            }
+            if (targetFolders.count() == 0) {
                 log.error("No folders specified. Use either -f or -i option.");
                 return 1;
             }
-
-            ProcessResult result = new ProcessResult();
-            processFolders(targetFolders, result);
+            if (ownMetrics) {
+                metrics.report("run", stats, statsFile);
+            }
+            if (ownConcurrency) {
+                concurrency.logSummary();
+            }
             return logFinalResult(result);
         } catch (Exception e) {
             log.error("Error executing command: {}", e.getMessage());
@@ -54,58 +136,145 @@ public class RunCommand implements Callable<Integer> {
         }
     }
 
-    private List<String> getTargetFolders() throws IOException {
-        List<String> folders = new ArrayList<>();
-        if (folderListFile != null && inputPaths != null) {
-            throw new IllegalArgumentException("Cannot use both -f and -i options simultaneously");
-        }
-        if (folderListFile != null) {
-            try (BufferedReader reader = new BufferedReader(new java.io.FileReader(folderListFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    folders.add(line.trim());
-                }
+    private void processFolders(TargetFolders folders, ProcessResult result) {
+        // Each task only waits on a child process, so virtual threads are enough;
+        // the fixed pool size is what bounds the number of concurrent processes.
+        // The semaphore keeps the executor's queue short, so the folder list is
+        // read as fast as the folders are processed rather than all up front.
+        // With adaptive limits the pool only bounds them from above.
+        int workers = concurrency != null && parallel <= 1 ? concurrency.maxConcurrency(ConcurrencyController.Resource.PROCESS)
+                : Math.max(1, parallel);
+        Semaphore queued = new Semaphore(2 * workers);
+        try (ExecutorService executor = Executors.newFixedThreadPool(workers,
+                Thread.ofVirtual().name("run-", 0).factory())) {
+            while (folders.hasNext()) {
+                String folder = folders.next();
+                queued.acquireUninterruptibly();
+                executor.submit(() -> {
+                    try {
+                        processFolder(folder, result);
+                    } finally {
+                        queued.release();
+                    }
+                });
             }
-        } else if (inputPaths != null) {
-            folders.addAll(inputPaths);
-        } else {
-            throw new IllegalArgumentException("Either -f or -i option must be specified");
         }
-        return folders;
     }
 
-    private void processFolders(List<String> folders, ProcessResult result) {
-        for (String folder : folders) {
+    private void processFolder(String folder, ProcessResult result) {
+        if (failFast && result.failed.get()) {
+            result.cancelledCount.incrementAndGet();
+            metrics.skipped("cancelled");
             if (verbose) {
-                log.info("Processing folder: {}", folder);
+                log.info("Skipping folder after previous failure: {}", folder);
             }
-            int exitCode = executeCommand(folder);
-            if (exitCode == 0) {
-                result.successCount++;
-                if (verbose) {
-                    log.info("Successfully executed command in folder: {}", folder);
-                }
-            } else {
-                result.failureCount++;
-                if (verbose) {
-                    log.error("Failed to execute command in folder: {}", folder);
+            return;
+        }
+        if (verbose) {
+            log.info("Processing folder: {}", folder);
+        }
+        Metrics.FolderTimer timer = metrics.startFolder("run", folder);
+        Path path = Invocation.resolve(folder);
+        String key = cache != null ? cache.key(path) : null;
+        if (key != null && replayCached(folder, key)) {
+            result.cachedCount.incrementAndGet();
+            result.successCount.incrementAndGet();
+            metrics.skipped("cached");
+            timer.finish(true);
+            return;
+        }
+        Outcome outcome;
+        if (concurrency != null) {
+            try (ConcurrencyController.Permit permit = concurrency.acquire(ConcurrencyController.Resource.PROCESS)) {
+                outcome = executeCommand(folder);
+                if (outcome.timedOut()) {
+                    permit.dropped();
                 }
             }
+        } else {
+            outcome = executeCommand(folder);
+        }
+        timer.finish(!outcome.timedOut() && outcome.exitCode() == 0);
+        if (key != null && !outcome.timedOut() && outcome.exitCode() == 0) {
+            RunCache.Entry entry = new RunCache.Entry(outcome.exitCode(), outcome.output());
+            cache.put(key, entry);
+            String after = cache.key(path);
+            if (after != null && !after.equals(key)) {
+                cache.put(after, entry);
+            }
+        }
+        if (outcome.timedOut()) {
+            result.timedOutCount.incrementAndGet();
+            result.failed.set(true);
+            log.error("Command timed out after {}s in folder: {}", timeout, folder);
+        } else if (outcome.exitCode() == 0) {
+            result.successCount.incrementAndGet();
+            if (verbose) {
+                log.info("Successfully executed command in folder: {}", folder);
+            }
+        } else {
+            result.failureCount.incrementAndGet();
+            result.failed.set(true);
+            if (verbose) {
+                log.error("Failed to execute command in folder: {}", folder);
+            }
         }
     }
 
+    /**
+     * Replays the stored result of an earlier successful run, if there is one the output mode can use.
+     */
+    private boolean replayCached(String folder, String key) {
+        OutputCapture.Mode mode = effectiveOutputMode();
+        RunCache.Entry entry = cache.get(key, mode != OutputCapture.Mode.DISCARD);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            if (entry.output() != null) {
+                OutputCapture.create(mode, Invocation.resolve(folder).toString(),
+                        logDir != null ? Invocation.resolve(logDir) : null, bufferSize).replay(entry.output());
+            }
+        } catch (IOException e) {
+            log.error("Error replaying cached output in folder {}: {}", folder, e.getMessage());
+            return false;
+        }
+        if (verbose) {
+            log.info("Skipping folder with a cached result (exit code {}): {}", entry.exitCode(), folder);
+        }
+        return true;
+    }
+
     private int logFinalResult(ProcessResult result) {
-        if (result.failureCount == 0) {
-            log.info("Command execution completed successfully in all {} folders", result.successCount);
+        int successCount = result.successCount.get();
+        int failureCount = result.failureCount.get();
+        int cancelledCount = result.cancelledCount.get();
+        int timedOutCount = result.timedOutCount.get();
+        if (result.cachedCount.get() > 0) {
+            log.info("Skipped {} folders with cached results", result.cachedCount.get());
+        }
+        if (failureCount == 0 && timedOutCount == 0) {
+            log.info("Command execution completed successfully in all {} folders", successCount);
             return 0;
+        } else if (cancelledCount > 0 || timedOutCount > 0) {
+            log.error("Command execution completed with {} successes, {} failures, {} timed out and {} cancelled folders",
+                successCount, failureCount, timedOutCount, cancelledCount);
+            return 1;
         } else {
             log.error("Command execution completed with {} successes and {} failures", 
-                result.successCount, result.failureCount);
+                successCount, failureCount);
             return 1;
         }
     }
 
-    private int executeCommand(String folder) {
+    private OutputCapture.Mode effectiveOutputMode() {
+        if (outputMode != null) {
+            return outputMode;
+        }
+        return verbose ? OutputCapture.Mode.BUFFER : OutputCapture.Mode.DISCARD;
+    }
+
+    private Outcome executeCommand(String folder) {
         try {
             ProcessBuilder processBuilder = new ProcessBuilder();
             if (System.getProperty("os.name").toLowerCase().contains("windows")) {
@@ -113,31 +282,48 @@ public class RunCommand implements Callable<Integer> {
             } else {
                 processBuilder.command("sh", "-c", command);
             }
-            processBuilder.directory(new File(folder));
+            processBuilder.directory(Invocation.resolve(folder).toFile());
+            Invocation.configure(processBuilder);
             processBuilder.redirectErrorStream(true);
 
+            OutputCapture capture = OutputCapture.create(effectiveOutputMode(), Invocation.resolve(folder).toString(),
+                    logDir != null ? Invocation.resolve(logDir) : null, bufferSize);
+            capture.configure(processBuilder);
+            long start = System.nanoTime();
             Process process = processBuilder.start();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (verbose) {
-                        log.info(line);
-                    }
-                }
-            }
+            capture.start(process);
+            metrics.record(Metrics.Phase.SPAWN, start);
 
+            start = System.nanoTime();
+            if (timeout > 0 && !process.waitFor(timeout, TimeUnit.SECONDS)) {
+                killProcessTree(process);
+                process.waitFor();
+                capture.finish();
+                metrics.record(Metrics.Phase.WAIT, start);
+                return new Outcome(process.exitValue(), true, null);
+            }
             int exitCode = process.waitFor();
+            capture.finish();
+            metrics.record(Metrics.Phase.WAIT, start);
             if (verbose) {
                 log.info("Command exited with code: {}", exitCode);
             }
-            return exitCode;
+            return new Outcome(exitCode, false, cache != null && exitCode == 0 ? capture.captured() : null);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             log.error("Command execution interrupted in folder {}: {}", folder, e.getMessage());
-            return 1;
+            return new Outcome(1, false, null);
         } catch (IOException e) {
             log.error("Error executing command in folder {}: {}", folder, e.getMessage());
-            return 1;
+            return new Outcome(1, false, null);
         }
     }
+
+    private static void killProcessTree(Process process) {
+        // Take the snapshot before killing the shell: once it dies its children are
+        // reparented and no longer show up as descendants.
+        List<ProcessHandle> descendants = process.descendants().toList();
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,317 @@
+package vn.io.calciferdev;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.PatternSyntaxException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The folders a command works on, from {@code -i} or read lazily from the {@code -f} list ({@code -}
+ * reads standard input). List entries are separated by newlines, or by NUL characters as printed by
+ * {@code find -print0}, and blank entries are skipped. Entries containing {@code *}, {@code ?},
+ * {@code [} or <code>{</code> are expanded as globs, one path segment at a time, with {@code **}
+ * matching any number of folders; a group cannot span segments. A folder that was already returned is not returned again.
+ * <p>
+ * Entries are read only as the command asks for them, so it can start on the first folders while the
+ * rest of the list is still being produced. Duplicates are recognized by a 64-bit hash of the normalized
+ * path, which keeps the memory per folder at a few bytes even for lists of millions of entries.
+ */
+@Slf4j
+public class TargetFolders implements Iterator<String>, Closeable {
+
+    private final Iterator<String> entries;
+    private final BufferedReader reader;
+    private final int separator;
+    private final SeenHashes seen = new SeenHashes();
+    private Iterator<String> expansion = Collections.emptyIterator();
+    private String next;
+    private long count;
+
+    private TargetFolders(Iterator<String> entries, BufferedReader reader, int separator) {
+        this.entries = entries;
+        this.reader = reader;
+        this.separator = separator;
+    }
+
+    /**
+     * Opens the folders given by {@code -f} or {@code -i}; exactly one of them must be set.
+     */
+    public static TargetFolders open(File folderListFile, List<String> inputPaths, boolean nullSeparated) throws IOException {
+        if (folderListFile != null && inputPaths != null) {
+            throw new IllegalArgumentException("Cannot use both -f and -i options simultaneously");
+        }
+        if (folderListFile != null) {
+            InputStream in = isStandardInput(folderListFile) ? System.in
+                    : new FileInputStream(Invocation.resolve(folderListFile));
+            return new TargetFolders(null, new BufferedReader(new InputStreamReader(in)), nullSeparated ? '\0' : '\n');
+        } else if (inputPaths != null) {
+            return new TargetFolders(inputPaths.iterator(), null, 0);
+        } else {
+            throw new IllegalArgumentException("Either -f or -i option must be specified");
+        }
+    }
+
+    static boolean isStandardInput(File folderListFile) {
+        return folderListFile.getPath().equals("-");
+    }
+
+    /**
+     * Number of folders returned so far.
+     */
+    public long count() {
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (expansion.hasNext()) {
+                    accept(expansion.next());
+                    continue;
+                }
+                String entry = readEntry();
+                if (entry == null) {
+                    return false;
+                }
+                if (entry.isBlank()) {
+                    continue;
+                }
+                if (isGlob(entry) && !Files.exists(Invocation.resolve(entry))) {
+                    expansion = new GlobExpansion(entry);
+                    if (!expansion.hasNext()) {
+                        log.warn("No folders match {}", entry);
+                    }
+                } else {
+                    accept(entry);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String folder = next;
+        next = null;
+        count++;
+        return folder;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    private void accept(String folder) {
+        String key = Invocation.resolve(folder).toAbsolutePath().normalize().toString();
+        if (seen.add(FileStateIndex.hash(key))) {
+            next = folder;
+        }
+    }
+
+    private String readEntry() throws IOException {
+        if (entries != null) {
+            return entries.hasNext() ? entries.next() : null;
+        }
+        if (separator == '\n') {
+            String line = reader.readLine();
+            return line != null ? line.trim() : null;
+        }
+        StringBuilder entry = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == separator) {
+                return entry.toString();
+            }
+            entry.append((char) c);
+        }
+        return entry.isEmpty() ? null : entry.toString();
+    }
+
+    private static boolean isGlob(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            switch (segment.charAt(i)) {
+                case '*', '?', '[', '{' -> {
+                    return true;
+                }
+                default -> {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Depth-first expansion of one glob. Directories are listed only when the walk reaches them, in
+     * name order, and names starting with a dot only match segments that start with a dot as well.
+     */
+    private static class GlobExpansion implements Iterator<String> {
+        private record Candidate(String path, int segment) {
+        }
+
+        private final String[] segments;
+        private final PathMatcher[] matchers;
+        private final Deque<Candidate> pending = new ArrayDeque<>();
+        private String next;
+
+        GlobExpansion(String glob) {
+            segments = glob.split("/", -1);
+            matchers = new PathMatcher[segments.length];
+            try {
+                for (int i = 0; i < segments.length; i++) {
+                    if (isGlob(segments[i]) && !segments[i].equals("**")) {
+                        matchers[i] = FileSystems.getDefault().getPathMatcher("glob:" + segments[i]);
+                    }
+                }
+            } catch (PatternSyntaxException e) {
+                // Includes groups such as {a/b,c} that span segments, which are matched one at a time.
+                log.error("Invalid glob {}: {}", glob, e.getDescription());
+                return;
+            }
+            if (segments.length > 1 && segments[0].isEmpty()) {
+                pending.push(new Candidate("/", 1));
+            } else {
+                pending.push(new Candidate("", 0));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !pending.isEmpty()) {
+                Candidate candidate = pending.pop();
+                if (candidate.segment() == segments.length) {
+                    if (!candidate.path().isEmpty() && Files.exists(Invocation.resolve(candidate.path()))) {
+                        next = candidate.path();
+                    }
+                    continue;
+                }
+                String segment = segments[candidate.segment()];
+                boolean last = candidate.segment() == segments.length - 1;
+                if (segment.isEmpty() || segment.equals(".")) {
+                    pending.push(new Candidate(candidate.path(), candidate.segment() + 1));
+                } else if (segment.equals("**")) {
+                    List<String> children = list(candidate.path(), null, segment, true);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        pending.push(new Candidate(join(candidate.path(), children.get(i)), candidate.segment()));
+                    }
+                    pending.push(new Candidate(candidate.path(), candidate.segment() + 1));
+                } else if (matchers[candidate.segment()] != null) {
+                    List<String> children = list(candidate.path(), matchers[candidate.segment()], segment, !last);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        pending.push(new Candidate(join(candidate.path(), children.get(i)), candidate.segment() + 1));
+                    }
+                } else {
+                    pending.push(new Candidate(join(candidate.path(), segment), candidate.segment() + 1));
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String path = next;
+            next = null;
+            return path;
+        }
+
+        private static List<String> list(String dir, PathMatcher matcher, String segment, boolean directoriesOnly) {
+            Path resolved = Invocation.resolve(dir.isEmpty() ? "." : dir);
+            List<String> names = new ArrayList<>();
+            if (!Files.isDirectory(resolved)) {
+                return names;
+            }
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(resolved)) {
+                for (Path child : children) {
+                    Path name = child.getFileName();
+                    if (name.toString().startsWith(".") && !segment.startsWith(".")) {
+                        continue;
+                    }
+                    if ((matcher == null || matcher.matches(name)) && (!directoriesOnly || Files.isDirectory(child))) {
+                        names.add(name.toString());
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Error listing {}: {}", resolved, e.getMessage());
+            }
+            Collections.sort(names);
+            return names;
+        }
+
+        private static String join(String dir, String name) {
+            return dir.isEmpty() ? name : dir.endsWith("/") ? dir + name : dir + "/" + name;
+        }
+    }
+
+    /**
+     * Open-addressing set of 64-bit hashes; zero marks an empty slot, so a zero hash is stored as one.
+     */
+    private static class SeenHashes {
+        private long[] slots = new long[1024];
+        private int size;
+
+        boolean add(long hash) {
+            if (hash == 0) {
+                hash = 1;
+            }
+            if (size * 2 >= slots.length) {
+                grow();
+            }
+            int mask = slots.length - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == hash) {
+                    return false;
+                }
+                if (slots[i] == 0) {
+                    slots[i] = hash;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            int mask = slots.length - 1;
+            for (long hash : old) {
+                if (hash != 0) {
+                    int i = (int) hash & mask;
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    slots[i] = hash;
+                }
+            }
+        }
+    }
+}
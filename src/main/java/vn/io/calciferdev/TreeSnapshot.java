@@ -0,0 +1,439 @@
+package vn.io.calciferdev;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the directory listings and attributes a {@link TreeWalker} read, so that later walks
+ * of the same trees do not list and stat them again. {@code apply} shares one between its steps, and a
+ * {@code replace} that renames folders uses one for its two walks of each folder.
+ * <p>
+ * The tree is a trie: every entry is a node number, its name an interned segment, and its parent, first
+ * child, next sibling, size, times and type are kept in arrays indexed by the node. Children are found
+ * through an open-addressing table from parent and segment to node. A directory is only served from the
+ * snapshot once it was listed in full; entries whose attributes were dropped are stat'ed again when a
+ * walk reaches them.
+ * <p>
+ * Writers have to report what they change: {@link #changed} after a file was rewritten,
+ * {@link #renamed} after a move, {@link #forget} for a tree written by other means, and {@link #clear}
+ * when anything may have changed. Work that may change anything while other walks go on, such as a
+ * shell command, runs between {@link #suspend} and {@link #resume}.
+ */
+public class TreeSnapshot {
+
+    private static final byte DIRECTORY = 1;
+    private static final byte SYMLINK = 2;
+    private static final byte OTHER = 4;
+    private static final byte KNOWN = 8;
+    private static final byte LISTED = 16;
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final long EMPTY = -1;
+
+    /**
+     * The entries of a directory as they were last listed; {@code attrs} holds null for an entry whose
+     * attributes have to be read again.
+     */
+    record Listing(String[] names, int[] nodes, BasicFileAttributes[] attrs) {
+    }
+
+    private record Attributes(long size, long modified, long accessed, byte type) implements BasicFileAttributes {
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.from(modified, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.from(accessed, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return type == 0;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return type == SYMLINK;
+        }
+
+        @Override
+        public boolean isOther() {
+            return type == OTHER;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    private final Map<String, Integer> segmentIds = new HashMap<>();
+    private String[] segments = new String[256];
+    private int segmentCount;
+
+    private int[] parent = new int[1024];
+    private int[] name = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private long[] size = new long[1024];
+    private long[] modified = new long[1024];
+    private long[] accessed = new long[1024];
+    private byte[] flags = new byte[1024];
+    private int count;
+
+    private long[] childKeys = new long[2048];
+    private int[] childNodes = new int[2048];
+    private int childCount;
+    private int suspended;
+
+    public TreeSnapshot() {
+        Arrays.fill(childKeys, EMPTY);
+        // The node above the file system roots.
+        addNode(NONE, NONE);
+    }
+
+    /**
+     * Returns the node of a path, adding it and its ancestors when they are not in the snapshot yet.
+     */
+    synchronized int node(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        int node = child(ROOT, intern(absolute.getRoot().toString()), true);
+        for (Path segment : absolute) {
+            node = child(node, intern(segment.toString()), true);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the attributes of a node, or null when they have to be read again.
+     */
+    synchronized BasicFileAttributes attributes(int node) {
+        if (suspended > 0 || (flags[node] & KNOWN) == 0) {
+            return null;
+        }
+        return new Attributes(size[node], modified[node], accessed[node], (byte) (flags[node] & (DIRECTORY | SYMLINK | OTHER)));
+    }
+
+    synchronized void setAttributes(int node, BasicFileAttributes attrs) {
+        if (suspended > 0) {
+            return;
+        }
+        size[node] = attrs.size();
+        modified[node] = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        accessed[node] = attrs.lastAccessTime().to(TimeUnit.NANOSECONDS);
+        byte type = attrs.isDirectory() ? DIRECTORY : attrs.isSymbolicLink() ? SYMLINK : attrs.isRegularFile() ? 0 : OTHER;
+        flags[node] = (byte) (flags[node] & LISTED | type | KNOWN);
+    }
+
+    /**
+     * Returns the entries of a directory, or null when it has not been listed in full.
+     */
+    synchronized Listing listing(int dir) {
+        if (suspended > 0 || (flags[dir] & LISTED) == 0) {
+            return null;
+        }
+        int entries = 0;
+        for (int child = firstChild[dir]; child != NONE; child = nextSibling[child]) {
+            entries++;
+        }
+        String[] names = new String[entries];
+        int[] nodes = new int[entries];
+        BasicFileAttributes[] attrs = new BasicFileAttributes[entries];
+        int i = 0;
+        for (int child = firstChild[dir]; child != NONE; child = nextSibling[child]) {
+            names[i] = segments[name[child]];
+            nodes[i] = child;
+            attrs[i] = attributes(child);
+            i++;
+        }
+        return new Listing(names, nodes, attrs);
+    }
+
+    /**
+     * Stores the complete listing of a directory, replacing the previous one, and returns the nodes of
+     * its entries, or null while suspended.
+     */
+    synchronized int[] record(int dir, List<String> names, List<BasicFileAttributes> attrs) {
+        if (suspended > 0) {
+            return null;
+        }
+        int[] nodes = new int[names.size()];
+        int[] previous = new int[16];
+        int previousCount = 0;
+        for (int child = firstChild[dir]; child != NONE; child = nextSibling[child]) {
+            if (previousCount == previous.length) {
+                previous = Arrays.copyOf(previous, 2 * previousCount);
+            }
+            previous[previousCount++] = child;
+            flags[child] &= ~KNOWN;
+        }
+        firstChild[dir] = NONE;
+        for (int i = names.size() - 1; i >= 0; i--) {
+            int node = child(dir, intern(names.get(i)), true);
+            setAttributes(node, attrs.get(i));
+            nextSibling[node] = firstChild[dir];
+            firstChild[dir] = node;
+            nodes[i] = node;
+        }
+        // Entries that are gone stay reachable by path, so nothing known about them may remain.
+        for (int i = 0; i < previousCount; i++) {
+            if ((flags[previous[i]] & KNOWN) == 0) {
+                forgetTree(previous[i]);
+            }
+        }
+        flags[dir] |= LISTED;
+        return nodes;
+    }
+
+    /**
+     * A file was rewritten in place: its attributes and those of its folder are read again.
+     */
+    public synchronized void changed(Path file) {
+        int node = find(file);
+        if (node != NONE) {
+            flags[node] &= ~KNOWN;
+            flags[parent[node]] &= ~KNOWN;
+        }
+    }
+
+    /**
+     * A file or folder was moved to a new name in the same folder.
+     */
+    public synchronized void renamed(Path from, Path to) {
+        int node = find(from);
+        if (node == NONE) {
+            return;
+        }
+        Path target = to.toAbsolutePath().normalize();
+        if (target.getFileName() == null || !target.getParent().equals(from.toAbsolutePath().normalize().getParent())) {
+            forget(from);
+            forget(to);
+            return;
+        }
+        int dir = parent[node];
+        int segment = intern(target.getFileName().toString());
+        int replaced = child(dir, segment, false);
+        if (replaced != NONE) {
+            unlink(dir, replaced);
+            remove(dir, segment);
+        }
+        remove(dir, name[node]);
+        name[node] = segment;
+        put(dir, segment, node);
+        flags[node] &= ~KNOWN;
+        flags[dir] &= ~KNOWN;
+    }
+
+    /**
+     * Drops everything known about a path and the tree below it, and the listing of its folder.
+     */
+    public synchronized void forget(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        int node = find(absolute);
+        if (node == NONE) {
+            // Nothing below it is known, but its nearest known ancestor may have been listed without it.
+            for (Path ancestor = absolute.getParent(); ancestor != null && node == NONE; ancestor = ancestor.getParent()) {
+                node = find(ancestor);
+            }
+            if (node != NONE) {
+                flags[node] &= ~(KNOWN | LISTED);
+            }
+            return;
+        }
+        flags[parent[node]] &= ~(KNOWN | LISTED);
+        forgetTree(node);
+    }
+
+    /**
+     * Drops everything known about the tree below a node.
+     */
+    private void forgetTree(int node) {
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            int next = pending.pop();
+            flags[next] &= ~(KNOWN | LISTED);
+            for (int child = firstChild[next]; child != NONE; child = nextSibling[child]) {
+                pending.push(child);
+            }
+        }
+    }
+
+    /**
+     * Stops serving and storing listings and attributes until the matching {@link #resume}, so walks that
+     * run meanwhile read everything from disk.
+     */
+    public synchronized void suspend() {
+        suspended++;
+    }
+
+    /**
+     * Ends a {@link #suspend}; everything known before it is dropped, as anything may have changed.
+     */
+    public synchronized void resume() {
+        suspended--;
+        clear();
+    }
+
+    /**
+     * Drops all listings and attributes; the interned names are kept for the next walk.
+     */
+    public synchronized void clear() {
+        for (int node = 0; node < count; node++) {
+            flags[node] &= ~(KNOWN | LISTED);
+        }
+    }
+
+    private int find(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        Integer root = segmentIds.get(absolute.getRoot().toString());
+        int node = root != null ? child(ROOT, root, false) : NONE;
+        for (Path segment : absolute) {
+            if (node == NONE) {
+                return NONE;
+            }
+            Integer id = segmentIds.get(segment.toString());
+            node = id != null ? child(node, id, false) : NONE;
+        }
+        return node;
+    }
+
+    private int intern(String segment) {
+        Integer id = segmentIds.get(segment);
+        if (id == null) {
+            if (segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments, 2 * segmentCount);
+            }
+            id = segmentCount++;
+            segments[id] = segment;
+            segmentIds.put(segment, id);
+        }
+        return id;
+    }
+
+    private int addNode(int dir, int segment) {
+        if (count == parent.length) {
+            int capacity = 2 * count;
+            parent = Arrays.copyOf(parent, capacity);
+            name = Arrays.copyOf(name, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            size = Arrays.copyOf(size, capacity);
+            modified = Arrays.copyOf(modified, capacity);
+            accessed = Arrays.copyOf(accessed, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        int node = count++;
+        parent[node] = dir;
+        name[node] = segment;
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        flags[node] = 0;
+        return node;
+    }
+
+    /**
+     * Looks up the child of {@code dir} called {@code segment}, adding it when {@code create} is set. A new
+     * child is not part of the listing of its folder until the folder is recorded again.
+     */
+    private int child(int dir, int segment, boolean create) {
+        long key = key(dir, segment);
+        int slot = slot(key);
+        if (childKeys[slot] == key && childNodes[slot] != NONE) {
+            return childNodes[slot];
+        }
+        if (!create) {
+            return NONE;
+        }
+        int node = addNode(dir, segment);
+        put(dir, segment, node);
+        return node;
+    }
+
+    private void put(int dir, int segment, int node) {
+        long key = key(dir, segment);
+        int slot = slot(key);
+        if (childKeys[slot] != key) {
+            childCount++;
+        }
+        childKeys[slot] = key;
+        childNodes[slot] = node;
+        if (2 * childCount > childKeys.length) {
+            long[] oldKeys = childKeys;
+            int[] oldNodes = childNodes;
+            childKeys = new long[2 * oldKeys.length];
+            childNodes = new int[2 * oldKeys.length];
+            Arrays.fill(childKeys, EMPTY);
+            childCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY && oldNodes[i] != NONE) {
+                    int newSlot = slot(oldKeys[i]);
+                    childKeys[newSlot] = oldKeys[i];
+                    childNodes[newSlot] = oldNodes[i];
+                    childCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a child from the table, leaving its key behind so the probe sequences through it still
+     * work; adding the same name again reuses the slot.
+     */
+    private void remove(int dir, int segment) {
+        long key = key(dir, segment);
+        int slot = slot(key);
+        if (childKeys[slot] == key) {
+            childNodes[slot] = NONE;
+        }
+    }
+
+    private void unlink(int dir, int node) {
+        if (firstChild[dir] == node) {
+            firstChild[dir] = nextSibling[node];
+            return;
+        }
+        for (int child = firstChild[dir]; child != NONE; child = nextSibling[child]) {
+            if (nextSibling[child] == node) {
+                nextSibling[child] = nextSibling[node];
+                return;
+            }
+        }
+    }
+
+    /**
+     * The slot holding {@code key}, or the empty slot where it would go.
+     */
+    private int slot(long key) {
+        int mask = childKeys.length - 1;
+        int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+        while (childKeys[slot] != EMPTY && childKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long key(int dir, int segment) {
+        return (long) dir << 32 | segment & 0xffffffffL;
+    }
+}
@@ -0,0 +1,201 @@
+package vn.io.calciferdev;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a directory tree on a fork-join pool. Each directory is listed by its own task, subdirectories
+ * are forked so idle workers can steal them, and the files of a directory are handed to the visitor in
+ * batches. Symbolic links are reported to the visitor but never followed. With a {@link TreeSnapshot},
+ * directories it has listed before are read from memory, and the listings made are stored in it.
+ */
+public class TreeWalker {
+
+    private static final int FILE_BATCH_SIZE = 32;
+
+    public interface Visitor {
+
+        default boolean preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            return true;
+        }
+
+        void visitFile(Path file, BasicFileAttributes attrs);
+
+        default void postVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        }
+
+        void visitFailed(Path path, IOException e);
+    }
+
+    private final ForkJoinPool pool;
+    private final Metrics metrics;
+    private final TreeSnapshot snapshot;
+
+    public TreeWalker(ForkJoinPool pool) {
+        this(pool, new Metrics());
+    }
+
+    public TreeWalker(ForkJoinPool pool, Metrics metrics) {
+        this(pool, metrics, null);
+    }
+
+    public TreeWalker(ForkJoinPool pool, Metrics metrics, TreeSnapshot snapshot) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * A walker on the same pool that reads and fills {@code snapshot}.
+     */
+    public TreeWalker withSnapshot(TreeSnapshot snapshot) {
+        return new TreeWalker(pool, metrics, snapshot);
+    }
+
+    public TreeSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public void walk(Path root, Visitor visitor) throws IOException {
+        int node = snapshot != null ? snapshot.node(root) : -1;
+        BasicFileAttributes attrs = node >= 0 ? snapshot.attributes(node) : null;
+        if (attrs == null) {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (node >= 0) {
+                snapshot.setAttributes(node, attrs);
+            }
+        }
+        if (attrs.isDirectory()) {
+            pool.invoke(new DirectoryTask(root, attrs, node, visitor, metrics, snapshot));
+        } else {
+            visitor.visitFile(root, attrs);
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final int node;
+        private final Visitor visitor;
+        private final Metrics metrics;
+        private final TreeSnapshot snapshot;
+
+        DirectoryTask(Path dir, BasicFileAttributes attrs, int node, Visitor visitor, Metrics metrics, TreeSnapshot snapshot) {
+            this.dir = dir;
+            this.attrs = attrs;
+            this.node = node;
+            this.visitor = visitor;
+            this.metrics = metrics;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected void compute() {
+            if (!visitor.preVisitDirectory(dir, attrs)) {
+                return;
+            }
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            List<BasicFileAttributes> fileAttrs = new ArrayList<>();
+            long start = System.nanoTime();
+            TreeSnapshot.Listing listing = node >= 0 ? snapshot.listing(node) : null;
+            if (listing != null) {
+                for (int i = 0; i < listing.names().length; i++) {
+                    Path entry = dir.resolve(listing.names()[i]);
+                    BasicFileAttributes entryAttrs = listing.attrs()[i];
+                    if (entryAttrs == null) {
+                        try {
+                            entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            visitor.visitFailed(entry, e);
+                            continue;
+                        }
+                        snapshot.setAttributes(listing.nodes()[i], entryAttrs);
+                    }
+                    add(entry, entryAttrs, listing.nodes()[i], tasks, files, fileAttrs);
+                }
+            } else {
+                List<Path> entries = new ArrayList<>();
+                List<String> names = new ArrayList<>();
+                List<BasicFileAttributes> entryAttrs = new ArrayList<>();
+                boolean[] complete = {node >= 0};
+                try {
+                    Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            entries.add(file);
+                            names.add(file.getFileName().toString());
+                            entryAttrs.add(attrs);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            complete[0] = false;
+                            visitor.visitFailed(file, e);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    complete[0] = false;
+                    visitor.visitFailed(dir, e);
+                }
+                // A listing with failed entries is not kept, so the next walk reports them again.
+                int[] nodes = complete[0] ? snapshot.record(node, names, entryAttrs) : null;
+                for (int i = 0; i < entries.size(); i++) {
+                    add(entries.get(i), entryAttrs.get(i), nodes != null ? nodes[i] : -1, tasks, files, fileAttrs);
+                }
+            }
+            metrics.record(Metrics.Phase.WALK, start);
+            for (int from = 0; from < files.size(); from += FILE_BATCH_SIZE) {
+                int to = Math.min(files.size(), from + FILE_BATCH_SIZE);
+                tasks.add(new FileBatchTask(files.subList(from, to), fileAttrs.subList(from, to), visitor).fork());
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            visitor.postVisitDirectory(dir, attrs);
+        }
+
+        private void add(Path entry, BasicFileAttributes entryAttrs, int entryNode, List<ForkJoinTask<?>> tasks,
+                List<Path> files, List<BasicFileAttributes> fileAttrs) {
+            if (entryAttrs.isDirectory()) {
+                tasks.add(new DirectoryTask(entry, entryAttrs, entryNode, visitor, metrics, snapshot).fork());
+            } else {
+                files.add(entry);
+                fileAttrs.add(entryAttrs);
+            }
+        }
+    }
+
+    private static class FileBatchTask extends RecursiveAction {
+        private final List<Path> files;
+        private final List<BasicFileAttributes> attrs;
+        private final Visitor visitor;
+
+        FileBatchTask(List<Path> files, List<BasicFileAttributes> attrs, Visitor visitor) {
+            this.files = files;
+            this.attrs = attrs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < files.size(); i++) {
+                visitor.visitFile(files.get(i), attrs.get(i));
+            }
+        }
+    }
+}
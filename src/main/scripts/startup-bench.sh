@@ -0,0 +1,22 @@
+#!/bin/sh
+# Compares the startup time of calcifer with and without the class data sharing archive.
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+JAR="$DIR/@project.build.finalName@-jar-with-dependencies.jar"
+RUNS=${RUNS:-10}
+
+measure() {
+    start=$(date +%s%N)
+    i=0
+    while [ "$i" -lt "$RUNS" ]; do
+        "$@" > /dev/null 2>&1
+        i=$((i + 1))
+    done
+    echo $(( ($(date +%s%N) - start) / RUNS / 1000000 ))
+}
+
+for args in "--version" "run true -i $DIR"; do
+    before=$(measure "$JAVA" -Xshare:auto -jar "$JAR" $args)
+    after=$(measure "$DIR/calcifer" $args)
+    echo "calcifer $args: ${before} ms without archive, ${after} ms with archive (average of $RUNS runs)"
+done
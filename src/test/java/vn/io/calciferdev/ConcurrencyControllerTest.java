@@ -0,0 +1,31 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyControllerTest {
+
+    @Test
+    void treatsTimeoutsAndExhaustedResourcesAsOverload() {
+        assertTrue(ConcurrencyController.isOverload(new SocketTimeoutException("Read timed out")));
+        assertTrue(ConcurrencyController.isOverload(new FileSystemException("/a/b: Too many open files")));
+        assertTrue(ConcurrencyController.isOverload(new IOException("error=11, Resource temporarily unavailable")));
+    }
+
+    @Test
+    void treatsProblemsWithTheFileAsOrdinaryFailures() {
+        assertFalse(ConcurrencyController.isOverload(new MalformedInputException(1)));
+        assertFalse(ConcurrencyController.isOverload(new NoSuchFileException("/a/b")));
+        assertFalse(ConcurrencyController.isOverload(new AccessDeniedException("/a/b")));
+        assertFalse(ConcurrencyController.isOverload(new IOException()));
+    }
+}
@@ -0,0 +1,63 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileRewriterTest {
+
+    @TempDir
+    Path dir;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final Metrics metrics = new Metrics() {
+        @Override
+        public void bytesRead(long bytes) {
+            bytesRead.addAndGet(bytes);
+            super.bytesRead(bytes);
+        }
+    };
+
+    @Test
+    void readsOnlyTheSampleOfABinaryFile() throws IOException {
+        byte[] content = new byte[2 * 1024 * 1024];
+        content[100] = 'f';
+        Path file = Files.write(dir.resolve("image.bin"), content);
+        FileRewriter rewriter = new FileRewriter(List.of(new LiteralReplacer("f", "g")), metrics, null, null);
+        FileRewriter.ContentHash hash = new FileRewriter.ContentHash(null);
+
+        assertEquals(FileRewriter.Result.BINARY, rewriter.rewrite(file, hash));
+        assertEquals(FileRewriter.BINARY_SAMPLE, bytesRead.get());
+        assertNull(hash.value());
+    }
+
+    @Test
+    void readsOnlyTheSampleOfABinaryFileInAChain() throws IOException {
+        byte[] content = new byte[64 * 1024];
+        Path file = Files.write(dir.resolve("archive.jar"), content);
+        FileRewriter rewriter = new FileRewriter(List.of(new LiteralReplacer("a", "b"), new LiteralReplacer("b", "c")),
+                metrics, null, null);
+
+        assertEquals(FileRewriter.Result.BINARY, rewriter.rewrite(file));
+        assertEquals(FileRewriter.BINARY_SAMPLE, bytesRead.get());
+    }
+
+    @Test
+    void rewritesTextLargerThanTheSample() throws IOException {
+        String text = "x".repeat(20_000) + "old" + "é".repeat(5_000);
+        Path file = Files.writeString(dir.resolve("text.txt"), text);
+        FileRewriter rewriter = new FileRewriter(List.of(new LiteralReplacer("old", "new")), metrics, null, null);
+
+        assertEquals(FileRewriter.Result.MODIFIED, rewriter.rewrite(file));
+        assertEquals(text.replace("old", "new"), Files.readString(file, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,106 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileStateIndexTest {
+
+    private static final long OLD = 1_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsEntriesAcrossRuns() throws IOException {
+        Path file = dir.resolve("index");
+        FileStateIndex index = FileStateIndex.open(file, "rules");
+        for (int i = 0; i < 100; i++) {
+            index.put(dir.resolve("f" + i), new FileStateIndex.Entry(i, OLD + i, 7L * i));
+        }
+        index.save();
+
+        FileStateIndex reopened = FileStateIndex.open(file, "rules");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(new FileStateIndex.Entry(i, OLD + i, 7L * i), reopened.get(dir.resolve("f" + i)));
+        }
+        assertNull(reopened.get(dir.resolve("missing")));
+    }
+
+    @Test
+    void mergesUpdatesWithEarlierEntries() throws IOException {
+        Path file = dir.resolve("index");
+        FileStateIndex index = FileStateIndex.open(file, "rules");
+        for (int i = 0; i < 50; i++) {
+            index.put(dir.resolve("f" + i), new FileStateIndex.Entry(i, OLD, 1));
+        }
+        index.save();
+
+        FileStateIndex second = FileStateIndex.open(file, "rules");
+        for (int i = 0; i < 50; i++) {
+            second.get(dir.resolve("f" + i));
+        }
+        second.put(dir.resolve("f10"), new FileStateIndex.Entry(10, OLD, 2));
+        second.remove(dir.resolve("f20"));
+        second.put(dir.resolve("new"), new FileStateIndex.Entry(3, OLD, 3));
+        second.save();
+
+        FileStateIndex third = FileStateIndex.open(file, "rules");
+        assertEquals(new FileStateIndex.Entry(10, OLD, 2), third.get(dir.resolve("f10")));
+        assertNull(third.get(dir.resolve("f20")));
+        assertEquals(new FileStateIndex.Entry(3, OLD, 3), third.get(dir.resolve("new")));
+        assertEquals(new FileStateIndex.Entry(49, OLD, 1), third.get(dir.resolve("f49")));
+    }
+
+    @Test
+    void dropsEntriesNotLookedUp() throws IOException {
+        Path file = dir.resolve("index");
+        FileStateIndex index = FileStateIndex.open(file, "rules");
+        index.put(dir.resolve("kept"), new FileStateIndex.Entry(1, OLD, 1));
+        index.put(dir.resolve("deleted"), new FileStateIndex.Entry(2, OLD, 2));
+        index.save();
+        long size = Files.size(file);
+
+        FileStateIndex second = FileStateIndex.open(file, "rules");
+        second.get(dir.resolve("kept"));
+        second.save();
+
+        FileStateIndex third = FileStateIndex.open(file, "rules");
+        assertEquals(new FileStateIndex.Entry(1, OLD, 1), third.get(dir.resolve("kept")));
+        assertNull(third.get(dir.resolve("deleted")));
+        assertEquals(size - 32, Files.size(file));
+    }
+
+    @Test
+    void startsOverWhenTheRulesChange() throws IOException {
+        Path file = dir.resolve("index");
+        FileStateIndex index = FileStateIndex.open(file, "rules");
+        index.put(dir.resolve("a"), new FileStateIndex.Entry(1, OLD, 1));
+        index.save();
+
+        FileStateIndex other = FileStateIndex.open(file, "other rules");
+        assertNull(other.get(dir.resolve("a")));
+        other.put(dir.resolve("b"), new FileStateIndex.Entry(2, OLD, 2));
+        other.save();
+
+        assertNull(FileStateIndex.open(file, "rules").get(dir.resolve("b")));
+        FileStateIndex reopened = FileStateIndex.open(file, "other rules");
+        assertNull(reopened.get(dir.resolve("a")));
+        assertEquals(new FileStateIndex.Entry(2, OLD, 2), reopened.get(dir.resolve("b")));
+    }
+
+    @Test
+    void doesNotKeepFilesChangedJustNow() throws IOException {
+        Path file = dir.resolve("index");
+        FileStateIndex index = FileStateIndex.open(file, "rules");
+        index.put(dir.resolve("a"), new FileStateIndex.Entry(1, System.currentTimeMillis() * 1_000_000L, 1));
+        index.save();
+        assertNull(FileStateIndex.open(file, "rules").get(dir.resolve("a")));
+    }
+}
@@ -0,0 +1,96 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GitIgnoreTest {
+
+    @TempDir
+    Path repo;
+
+    private GitIgnore rules;
+
+    @BeforeEach
+    void writeRules() throws IOException {
+        Files.createDirectory(repo.resolve(".git"));
+        Files.writeString(repo.resolve(".gitignore"), """
+                # comment
+                *.log
+                !keep.log
+                build/
+                /root-only.txt
+                docs/**/*.tmp
+                logs/**
+                a?c
+                [abc].md
+                [!x]y.bin
+                \\#hash
+                """);
+        rules = GitIgnore.forRoot(repo).enter(repo);
+    }
+
+    @Test
+    void matchesNamesInAnyFolder() {
+        assertTrue(rules.isIgnored(repo.resolve("app.log"), false));
+        assertTrue(rules.isIgnored(repo.resolve("src/deep/app.log"), false));
+        assertFalse(rules.isIgnored(repo.resolve("app.logs"), false));
+        assertTrue(rules.isIgnored(repo.resolve("abc"), false));
+        assertFalse(rules.isIgnored(repo.resolve("a/c"), false));
+        assertTrue(rules.isIgnored(repo.resolve("b.md"), false));
+        assertFalse(rules.isIgnored(repo.resolve("d.md"), false));
+        assertTrue(rules.isIgnored(repo.resolve("zy.bin"), false));
+        assertFalse(rules.isIgnored(repo.resolve("xy.bin"), false));
+        assertTrue(rules.isIgnored(repo.resolve("#hash"), false));
+    }
+
+    @Test
+    void laterNegationWins() {
+        assertFalse(rules.isIgnored(repo.resolve("keep.log"), false));
+        assertFalse(rules.isIgnored(repo.resolve("src/keep.log"), false));
+    }
+
+    @Test
+    void directoryRulesOnlyMatchDirectories() {
+        assertTrue(rules.isIgnored(repo.resolve("build"), true));
+        assertTrue(rules.isIgnored(repo.resolve("src/build"), true));
+        assertFalse(rules.isIgnored(repo.resolve("build"), false));
+    }
+
+    @Test
+    void anchoredRulesMatchFromTheirFolder() {
+        assertTrue(rules.isIgnored(repo.resolve("root-only.txt"), false));
+        assertFalse(rules.isIgnored(repo.resolve("src/root-only.txt"), false));
+        assertTrue(rules.isIgnored(repo.resolve("docs/a.tmp"), false));
+        assertTrue(rules.isIgnored(repo.resolve("docs/x/y/a.tmp"), false));
+        assertFalse(rules.isIgnored(repo.resolve("src/docs/a.tmp"), false));
+        assertTrue(rules.isIgnored(repo.resolve("logs/a/b.txt"), false));
+        assertFalse(rules.isIgnored(repo.resolve("logs2/b.txt"), false));
+    }
+
+    @Test
+    void deeperFilesTakePrecedence() throws IOException {
+        Path sub = Files.createDirectories(repo.resolve("sub"));
+        Files.writeString(sub.resolve(".gitignore"), "!important.log\n*.txt\n");
+        GitIgnore deeper = rules.enter(sub);
+        assertFalse(deeper.isIgnored(sub.resolve("important.log"), false));
+        assertTrue(deeper.isIgnored(sub.resolve("other.log"), false));
+        assertTrue(deeper.isIgnored(sub.resolve("notes.txt"), false));
+        assertFalse(deeper.isIgnored(repo.resolve("notes.txt"), false));
+    }
+
+    @Test
+    void inheritsTheRulesOfTheEnclosingRepository() throws IOException {
+        Path nested = Files.createDirectories(repo.resolve("src/main"));
+        GitIgnore inherited = GitIgnore.forRoot(nested);
+        assertTrue(inherited.isIgnored(nested.resolve("app.log"), false));
+        assertFalse(inherited.isIgnored(nested.resolve("App.java"), false));
+    }
+}
@@ -0,0 +1,92 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Files larger than one window are scanned and rewritten window by window; a match or a UTF-8 sequence
+ * crossing the boundary between two windows has to come out as if the file was replaced in one piece.
+ */
+class ReplacerWindowTest {
+
+    private static final String MARK = "é€old";
+
+    @TempDir
+    Path dir;
+
+    static Stream<Arguments> boundaries() {
+        int[] offsets = IntStream.rangeClosed(-8, 2).map(i -> FileRewriter.WINDOW_SIZE + i).toArray();
+        return Stream.of("literal", "regex", "multi").flatMap(kind -> Arrays.stream(offsets).mapToObj(offset -> Arguments.of(kind, offset)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("boundaries")
+    void replacesAcrossTheWindowBoundary(String kind, int offset) throws IOException {
+        byte[] mark = MARK.getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[FileRewriter.WINDOW_SIZE + 128 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        System.arraycopy(mark, 0, content, 10, mark.length);
+        System.arraycopy(mark, 0, content, offset, mark.length);
+        System.arraycopy(mark, 0, content, content.length - mark.length, mark.length);
+        Path file = Files.write(dir.resolve("large.txt"), content);
+        String text = new String(content, StandardCharsets.UTF_8);
+
+        FileRewriter rewriter = new FileRewriter(List.of(replacer(kind)), new Metrics(), null, null);
+        assertEquals(FileRewriter.Result.MODIFIED, rewriter.rewrite(file));
+        assertArrayEquals(expected(kind, text).getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file));
+    }
+
+    @ParameterizedTest
+    @MethodSource("boundaries")
+    void findsAMatchOnlyAtTheWindowBoundary(String kind, int offset) throws IOException {
+        byte[] mark = MARK.getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[FileRewriter.WINDOW_SIZE + 128 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        System.arraycopy(mark, 0, content, offset, mark.length);
+        Path file = Files.write(dir.resolve("large.txt"), content);
+        String text = new String(content, StandardCharsets.UTF_8);
+        FileRewriter.ContentHash hash = new FileRewriter.ContentHash(null);
+
+        FileRewriter rewriter = new FileRewriter(List.of(replacer(kind)), new Metrics(), null, null);
+        assertEquals(FileRewriter.Result.MODIFIED, rewriter.rewrite(file, hash));
+        assertEquals(expected(kind, text), Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    private static ContentReplacer replacer(String kind) {
+        return switch (kind) {
+            case "literal" -> new LiteralReplacer("€old", "new");
+            case "regex" -> new RegexReplacer(Pattern.compile("€o(l+)d"), "n$1w");
+            default -> {
+                Map<String, String> mappings = new LinkedHashMap<>();
+                mappings.put("é€", "E");
+                mappings.put("old", "new");
+                yield new AhoCorasickReplacer(mappings);
+            }
+        };
+    }
+
+    private static String expected(String kind, String text) {
+        return switch (kind) {
+            case "literal" -> text.replace("€old", "new");
+            case "regex" -> Pattern.compile("€o(l+)d").matcher(text).replaceAll("n$1w");
+            default -> text.replace("é€", "E").replace("old", "new");
+        };
+    }
+}
@@ -0,0 +1,86 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class RingBufferTest {
+
+    @Test
+    void keepsEverythingBelowCapacity() {
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(100);
+        write(buffer, "hello ");
+        write(buffer, "world");
+        assertEquals("hello world", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, buffer.dropped());
+    }
+
+    @Test
+    void growsAfterFillingTheInitialArray() {
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(1024 * 1024);
+        byte[] first = filled(8192, 'A');
+        byte[] second = filled(100, 'B');
+        buffer.write(first, first.length);
+        buffer.write(second, second.length);
+        assertArrayEquals(concat(first, second), buffer.toByteArray());
+        assertEquals(0, buffer.dropped());
+    }
+
+    @Test
+    void growsAcrossSeveralChunks() {
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(1024 * 1024);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 40; i++) {
+            byte[] chunk = filled(8192, 'a' + i % 26);
+            buffer.write(chunk, chunk.length);
+            expected.writeBytes(chunk);
+        }
+        assertArrayEquals(expected.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    void keepsTheLastBytesOnceFull() {
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(20000);
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            byte[] chunk = filled(8192, '0' + i);
+            buffer.write(chunk, chunk.length);
+            all.writeBytes(chunk);
+        }
+        byte[] bytes = all.toByteArray();
+        assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 20000, bytes.length), buffer.toByteArray());
+        assertEquals(bytes.length - 20000, buffer.dropped());
+    }
+
+    @Test
+    void keepsTheEndOfAChunkLargerThanTheCapacity() {
+        OutputCapture.RingBuffer buffer = new OutputCapture.RingBuffer(4);
+        write(buffer, "abcdefgh");
+        assertEquals("efgh", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(4, buffer.dropped());
+        write(buffer, "ij");
+        assertEquals("ghij", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static void write(OutputCapture.RingBuffer buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, bytes.length);
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] out = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, out, first.length, second.length);
+        return out;
+    }
+}
@@ -0,0 +1,101 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TargetFoldersTest {
+
+    @TempDir
+    Path dir;
+
+    private String root;
+
+    @BeforeEach
+    void createTree() throws IOException {
+        for (String folder : List.of("a/x/repo1", "a/y/repo2", "a/y/z/repo3", "b/repo4", "a/.hidden/repo5", "c[1]")) {
+            Files.createDirectories(dir.resolve(folder));
+        }
+        Files.writeString(dir.resolve("a/file.txt"), "not a folder");
+        root = dir.toString().replace('\\', '/');
+    }
+
+    @Test
+    void expandsSingleSegmentWildcards() throws IOException {
+        assertEquals(List.of(root + "/a/x", root + "/a/y"), folders(List.of(root + "/a/*/")));
+        assertEquals(List.of(root + "/a/x/repo1", root + "/a/y/repo2"), folders(List.of(root + "/a/?/repo*")));
+        assertEquals(List.of(root + "/a/x/repo1", root + "/a/y/repo2"), folders(List.of(root + "/a/{x,y}/repo[12]")));
+        assertEquals(List.of(root + "/b/repo4"), folders(List.of(root + "/{a,b}/repo4")));
+    }
+
+    @Test
+    void matchesNothingForAGroupAcrossSegments() throws IOException {
+        assertEquals(List.of(root + "/b/repo4"), folders(List.of(root + "/{a/y,b}/repo[24]", root + "/b/repo4")));
+    }
+
+    @Test
+    void matchesFilesOnlyInTheLastSegment() throws IOException {
+        assertEquals(List.of(root + "/a/file.txt", root + "/a/x", root + "/a/y"), folders(List.of(root + "/a/*")));
+        assertEquals(List.of(), folders(List.of(root + "/a/*.txt/repo1")));
+    }
+
+    @Test
+    void expandsDoubleStarToAnyDepth() throws IOException {
+        assertEquals(List.of(root + "/a/x/repo1", root + "/a/y/repo2", root + "/a/y/z/repo3"),
+                folders(List.of(root + "/a/**/repo*")));
+    }
+
+    @Test
+    void matchesHiddenFoldersOnlyByADotPattern() throws IOException {
+        assertEquals(List.of(root + "/a/.hidden/repo5"), folders(List.of(root + "/a/.*/repo*")));
+    }
+
+    @Test
+    void takesAnExistingPathLiterally() throws IOException {
+        assertEquals(List.of(root + "/c[1]"), folders(List.of(root + "/c[1]")));
+    }
+
+    @Test
+    void returnsEachFolderOnce() throws IOException {
+        assertEquals(List.of(root + "/b/repo4", root + "/a/x/repo1"),
+                folders(List.of(root + "/b/repo4", root + "/b/./repo4", root + "/*/repo4", root + "/a/x/repo1")));
+    }
+
+    @Test
+    void readsNulSeparatedLists() throws IOException {
+        Path list = Files.writeString(dir.resolve("list"), root + "/b/repo4\0\0" + root + "/a/*/repo1\0");
+        List<String> folders = new ArrayList<>();
+        try (TargetFolders targets = TargetFolders.open(list.toFile(), null, true)) {
+            targets.forEachRemaining(folders::add);
+            assertEquals(2, targets.count());
+        }
+        assertEquals(List.of(root + "/b/repo4", root + "/a/x/repo1"), folders);
+    }
+
+    @Test
+    void skipsBlankLines() throws IOException {
+        Path list = Files.writeString(dir.resolve("list"), "\n  " + root + "/b/repo4  \n\n");
+        List<String> folders = new ArrayList<>();
+        try (TargetFolders targets = TargetFolders.open(new File(list.toString()), null, false)) {
+            targets.forEachRemaining(folders::add);
+        }
+        assertEquals(List.of(root + "/b/repo4"), folders);
+    }
+
+    private static List<String> folders(List<String> inputPaths) throws IOException {
+        List<String> folders = new ArrayList<>();
+        try (TargetFolders targets = TargetFolders.open(null, inputPaths, false)) {
+            targets.forEachRemaining(folders::add);
+        }
+        return folders;
+    }
+}
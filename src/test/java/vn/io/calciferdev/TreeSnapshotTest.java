@@ -0,0 +1,45 @@
+package vn.io.calciferdev;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TreeSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void servesNothingWhileSuspended() throws IOException {
+        Path file = Files.writeString(dir.resolve("a.txt"), "a");
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        TreeSnapshot snapshot = new TreeSnapshot();
+        int node = snapshot.node(dir);
+        snapshot.record(node, List.of("a.txt"), List.of(attrs));
+        assertNotNull(snapshot.listing(node));
+
+        snapshot.suspend();
+        assertNull(snapshot.listing(node));
+        assertNull(snapshot.attributes(snapshot.node(file)));
+        assertNull(snapshot.record(node, List.of("a.txt"), List.of(attrs)));
+        snapshot.suspend();
+        snapshot.resume();
+        assertNull(snapshot.listing(node));
+        snapshot.resume();
+
+        // Whatever was known before may have changed meanwhile.
+        assertNull(snapshot.listing(node));
+        snapshot.record(node, List.of("a.txt"), List.of(attrs));
+        assertEquals(1, snapshot.listing(node).names().length);
+    }
+}